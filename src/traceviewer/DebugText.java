@@ -0,0 +1,147 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes DEBUGOUT text on demand, straight from its offset in the trace file.
+ *
+ * The loader only records where each 128-byte text block lives; the text is
+ * read and turned into a String the first time it is shown, and the most
+ * recently used strings are kept in a small LRU cache.
+ *
+ * Traces that can't be read at random (gzip'd ones) keep their text blocks
+ * in a Pool instead, and compressed archives have their own subclass that
+ * decompresses the block holding the text (see TraceArchive).
+ *
+ * @author sgp1000
+ */
+class DebugText
+{
+    static final int CACHE_SIZE = 4096;
+
+    RandomAccessFile raf;
+    FileChannel ch;
+    int blocksize;
+
+    Map<Long, String> cache = new LinkedHashMap<Long, String>(CACHE_SIZE, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public DebugText(String file, int blocksize) throws IOException
+    {
+        this(blocksize);
+        raf = new RandomAccessFile(file, "r");
+        ch = raf.getChannel();
+    }
+
+    protected DebugText(int blocksize)
+    {
+        this.blocksize = blocksize;
+    }
+
+    /**
+     * Steps 'in' over the text block at its current position, and returns the
+     * offset that get() will later want for it.
+     */
+    public long capture(TraceInput in) throws IOException
+    {
+        long offset = in.position();
+        in.skip(blocksize);
+        return offset;
+    }
+
+    public synchronized String get(long offset)
+    {
+        String str = cache.get(offset);
+        if (str != null)
+            return str;
+
+        str = read(offset);
+        if (str != null)
+            cache.put(offset, str);
+        return str;
+    }
+
+    // decodes the block without going through (or disturbing) the cache
+    public String read(long offset)
+    {
+        try
+        {
+            ByteBuffer bs = ByteBuffer.allocate(blocksize);
+            while (bs.hasRemaining())
+            {
+                if (ch.read(bs, offset + bs.position()) == -1)
+                    break;
+            }
+            return new String(bs.array(), 0, bs.position()).trim();
+        } catch (IOException ex)
+        {
+            Logger.getLogger(DebugText.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    public void close()
+    {
+        if (raf == null)
+            return;
+
+        try
+        {
+            raf.close();
+        } catch (IOException ex)
+        {
+            Logger.getLogger(DebugText.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Keeps the raw text blocks in memory, for traces that are streamed in.
+     * Offsets are positions in the pool rather than in the file.
+     */
+    static class Pool extends DebugText
+    {
+        byte[] pool = new byte[64 * 1024];
+        int used = 0;
+
+        public Pool(int blocksize)
+        {
+            super(blocksize);
+        }
+
+        // synchronized, as the loader fills the pool while it's being shown
+        @Override
+        public synchronized long capture(TraceInput in) throws IOException
+        {
+            if (used + blocksize > pool.length)
+                pool = Arrays.copyOf(pool, pool.length * 2);
+            in.need(blocksize).get(pool, used, blocksize);
+            used += blocksize;
+            return used - blocksize;
+        }
+
+        @Override
+        public String read(long offset)
+        {
+            return new String(pool, (int)offset, blocksize).trim();
+        }
+    }
+}
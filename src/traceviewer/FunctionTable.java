@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * The functions in a trace: their ids, names and colours, in the order the
+ * trace lists them, and the order their rows are shown in (which the user can
+ * change). Looking up a function's row, or a row's function, is O(1) either
+ * way, however sparse the function ids are.
+ *
+ * @author sgp1000
+ */
+class FunctionTable
+{
+    int count = 0;
+    int[] ids = new int[16];
+    String[] names = new String[16];
+    Color[] colors = new Color[16];
+
+    // function id -> its index in the arrays above
+    IntIntMap indexOf = new IntIntMap();
+
+    // row -> function index, and function index -> row
+    int[] rowFunc = new int[16];
+    int[] funcRow = new int[16];
+
+    /**
+     * Adds a function, in a new row at the bottom. If the id is already in
+     * the table, it just gets the new name and colour.
+     */
+    public void add(int func_id, String name, Color color)
+    {
+        int k = indexOf.get(func_id, -1);
+        if (k < 0)
+        {
+            if (count == ids.length)
+            {
+                int cap = count * 2;
+                ids = Arrays.copyOf(ids, cap);
+                names = Arrays.copyOf(names, cap);
+                colors = Arrays.copyOf(colors, cap);
+                rowFunc = Arrays.copyOf(rowFunc, cap);
+                funcRow = Arrays.copyOf(funcRow, cap);
+            }
+
+            k = count++;
+            ids[k] = func_id;
+            indexOf.put(func_id, k);
+            rowFunc[k] = k;
+            funcRow[k] = k;
+        }
+        names[k] = name;
+        colors[k] = color;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public boolean contains(int func_id)
+    {
+        return indexOf.get(func_id, -1) >= 0;
+    }
+
+    // the row the function is shown in, or -1 if it isn't in the table
+    public int rowOf(int func_id)
+    {
+        int k = indexOf.get(func_id, -1);
+        return k < 0 ? -1 : funcRow[k];
+    }
+
+    // the id of the function shown in 'row'
+    public int funcAt(int row)
+    {
+        return ids[rowFunc[row]];
+    }
+
+    public String nameAt(int row)
+    {
+        return names[rowFunc[row]];
+    }
+
+    public Color colorAt(int row)
+    {
+        return colors[rowFunc[row]];
+    }
+
+    public void swapRows(int a, int b)
+    {
+        int k = rowFunc[a];
+        rowFunc[a] = rowFunc[b];
+        rowFunc[b] = k;
+        funcRow[rowFunc[a]] = a;
+        funcRow[rowFunc[b]] = b;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.Arrays;
+
+/**
+ * A map from int to int, without boxing either, for looking things up by
+ * function id once per sample. Function ids can be anything (firmware builds
+ * number them sparsely), so they can't just index an array.
+ *
+ * Open addressing with linear probing, kept at most half full.
+ *
+ * @author sgp1000
+ */
+class IntIntMap
+{
+    int[] keys = new int[16];
+    int[] values = new int[16];
+    boolean[] used = new boolean[16];
+    int size = 0;
+
+    private int slot(int key)
+    {
+        // spread the bits, as ids are often small and consecutive, then fold
+        // the high half down so big tables use every bit of the hash
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    // the value for 'key', or 'missing' if there isn't one
+    public int get(int key, int missing)
+    {
+        for (int i = slot(key); used[i]; i = (i + 1) & (keys.length - 1))
+        {
+            if (keys[i] == key)
+                return values[i];
+        }
+        return missing;
+    }
+
+    public void put(int key, int value)
+    {
+        int i = slot(key);
+        for (; used[i]; i = (i + 1) & (keys.length - 1))
+        {
+            if (keys[i] == key)
+            {
+                values[i] = value;
+                return;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if (++size * 2 > keys.length)
+            rehash(keys.length * 2);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        int[] old_keys = keys;
+        int[] old_values = values;
+        boolean[] old_used = used;
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        size = 0;
+        for (int i = 0; i < old_keys.length; i++)
+        {
+            if (old_used[i])
+                put(old_keys[i], old_values[i]);
+        }
+    }
+}
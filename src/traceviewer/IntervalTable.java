@@ -0,0 +1,326 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The function calls in a trace, paired up from their ENTER and EXIT samples.
+ *
+ * Each interval is numbered when its ENTER arrives, so intervals are in order
+ * of their start time, both overall and in each function's own list. Every
+ * function has its own stack of open calls, so recursive or re-entrant calls
+ * pair up with the right EXIT, and get a nesting depth (0 for the outermost
+ * call of that function).
+ *
+ * The table is extended as samples arrive (see update()), so pairing is done
+ * once per sample rather than on every redraw. Calls that haven't exited yet
+ * have an end of -1, and an EXIT with no ENTER before it (the call started
+ * before the trace, or before the samples that were dropped) is ignored.
+ *
+ * Each function's samples (its ENTERs, EXITs and debug output) are also kept
+ * in time order, so stepping from one to the next is a binary search rather
+ * than a scan of the whole trace.
+ *
+ * The table is shown while the loader is still extending it, so anything
+ * reading it from another thread holds lock.readLock() (see update()).
+ *
+ * @author sgp1000
+ */
+class IntervalTable
+{
+    int count = 0;
+    long[] starts = new long[16];
+    long[] ends = new long[16];
+    int[] funcIds = new int[16];
+    int[] exitPoints = new int[16];
+    int[] depths = new int[16];
+    int[] parents = new int[16];    // the call of the same function this one was made inside, or -1
+
+    /**
+     * One function's calls: the ids of all its intervals (in start order), the
+     * stack of those still open (as positions in 'ids'), and their summary.
+     * Also where all its samples are in the sample store.
+     */
+    static class Row
+    {
+        int count = 0;
+        int[] ids = new int[16];
+
+        int open = 0;
+        int[] stack = new int[16];
+
+        int events = 0;
+        int[] eventPos = new int[16];
+
+        RowSummary summary;
+
+        void addEvent(int pos)
+        {
+            if (events == eventPos.length)
+                eventPos = Arrays.copyOf(eventPos, events * 2);
+            eventPos[events++] = pos;
+        }
+
+        void add(int id)
+        {
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+        }
+
+        void push(int id)
+        {
+            if (open == stack.length)
+                stack = Arrays.copyOf(stack, open * 2);
+            stack[open++] = id;
+        }
+    }
+
+    static final Row EMPTY_ROW = new Row();
+
+    // each function's row, found by function id (looked up once per sample, so not boxed)
+    IntIntMap rowOf = new IntIntMap();
+    Row[] rows = new Row[16];
+    int numRows = 0;
+
+    // how far through which samples the table has got
+    SampleStore source = null;
+    int built = 0;
+
+    // held to read the table while another thread may be updating it
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // samples paired up at a time, before readers get another look in
+    static final int UPDATE_STEP = 64 * 1024;
+
+    public static IntervalTable build(SampleStore samples)
+    {
+        IntervalTable table = new IntervalTable();
+        table.update(samples);
+        return table;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    // whether the table is paired up from 'samples' (or from more of them), or hasn't started
+    public boolean isFor(SampleStore samples)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return source == null || source.dropped == samples.dropped;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Row getRow(int func_id)
+    {
+        int r = rowOf.get(func_id, -1);
+        return r >= 0 ? rows[r] : EMPTY_ROW;
+    }
+
+    /**
+     * Brings the table up to date with 'samples'. If they carry on from the
+     * samples the table was built from, only the new ones are paired up;
+     * otherwise (samples were dropped from the front) it starts again.
+     *
+     * Only one thread may update the table, but others can read it meanwhile
+     * under the read lock. The samples are paired up UPDATE_STEP at a time
+     * under the write lock, so a reader never waits long. A reader may find
+     * the table further on than the samples it was handed, so the positions
+     * in it are of samples in 'source'.
+     */
+    public void update(SampleStore samples)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (source == null || samples.dropped != source.dropped || samples.size() < built)
+                clear();
+            source = samples;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        while (built < samples.size())
+        {
+            lock.writeLock().lock();
+            try
+            {
+                pair(samples, Math.min(samples.size(), built + UPDATE_STEP));
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // pairs up the samples from 'built' to 'end'
+    private void pair(SampleStore samples, int end)
+    {
+        for (int k = built; k < end; k++)
+        {
+            int func_id = samples.getFuncId(k);
+            Row row = getRow(func_id);
+            if (row == EMPTY_ROW)
+            {
+                row = new Row();
+                row.summary = new RowSummary(this, row);
+                if (numRows == rows.length)
+                    rows = Arrays.copyOf(rows, numRows * 2);
+                rowOf.put(func_id, numRows);
+                rows[numRows++] = row;
+            }
+            row.addEvent(k);
+
+            int type = samples.getType(k);
+            if (type != TraceDetails.TYPE_ENTER && type != TraceDetails.TYPE_EXIT)
+                continue;
+
+            if (type == TraceDetails.TYPE_ENTER)
+            {
+                int parent = row.open > 0 ? row.ids[row.stack[row.open - 1]] : -1;
+                int id = add(func_id, samples.getTimestamp(k), row.open, parent);
+                row.add(id);
+                row.push(row.count - 1);
+                row.summary.added(row.count - 1);
+            }
+            else if (row.open > 0)
+            {
+                int pos = row.stack[--row.open];
+                int id = row.ids[pos];
+                ends[id] = samples.getTimestamp(k);
+                exitPoints[id] = samples.getExitPoint(k);
+                row.summary.closed(pos);
+            }
+        }
+        built = end;
+    }
+
+    private void clear()
+    {
+        count = 0;
+        rowOf.clear();
+        Arrays.fill(rows, null);
+        numRows = 0;
+        built = 0;
+    }
+
+    private int add(int func_id, long start, int depth, int parent)
+    {
+        if (count == starts.length)
+        {
+            int cap = count * 2;
+            starts = Arrays.copyOf(starts, cap);
+            ends = Arrays.copyOf(ends, cap);
+            funcIds = Arrays.copyOf(funcIds, cap);
+            exitPoints = Arrays.copyOf(exitPoints, cap);
+            depths = Arrays.copyOf(depths, cap);
+            parents = Arrays.copyOf(parents, cap);
+        }
+
+        starts[count] = start;
+        ends[count] = -1;
+        funcIds[count] = func_id;
+        exitPoints[count] = -1;
+        depths[count] = depth;
+        parents[count] = parent;
+        return count++;
+    }
+
+    // the position in 'row' of its first interval starting at or after 't'
+    public int lowerBound(Row row, long t)
+    {
+        int lo = 0;
+        int hi = row.count;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (starts[row.ids[mid]] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // the position in row.eventPos of its first sample at or after 't'
+    public int eventLowerBound(Row row, long t)
+    {
+        int lo = 0;
+        int hi = row.events;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (source.getTimestamp(row.eventPos[mid]) < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the innermost call in 'row' running at any time from 'from' to
+     * 'to', or -1 if there isn't one. Calls still open are taken to run until
+     * 'last'.
+     *
+     * The last call to start by 'to' is the one if it is still running at
+     * 'from'. If not, any earlier call running then must have been open when
+     * it started, so only its callers (no more of them than it is deep) need
+     * looking at.
+     */
+    public int findCall(Row row, long from, long to, long last)
+    {
+        int pos = lowerBound(row, to + 1) - 1;
+        if (pos < 0)
+            return -1;
+
+        for (int id = row.ids[pos]; id >= 0; id = parents[id])
+        {
+            if (getEnd(id, last) >= from)
+                return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns how many calls in 'row' were running at some time from 't0' to
+     * 't1': those starting in that time, and those already running at 't0'
+     * (the call findCall() finds there and its callers).
+     */
+    public int countCalls(Row row, long t0, long t1, long last)
+    {
+        int n = lowerBound(row, t1 + 1) - lowerBound(row, t0);
+        for (int id = findCall(row, t0, t0 - 1, last); id >= 0; id = parents[id])
+            n++;
+        return n;
+    }
+
+    // the time of the last sample paired up, which is as far as calls still open have run
+    public long getLastTimestamp()
+    {
+        return built > 0 ? source.getTimestamp(built - 1) : 0;
+    }
+
+    // the end of the interval, with calls still open taken to run until 'last'
+    public long getEnd(int id, long last)
+    {
+        return ends[id] < 0 ? last : ends[id];
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws the trace's boxes and lines straight into the pixels of an int-packed
+ * image (a tile, see TileCache), which is much quicker than going through
+ * Graphics2D for each of them when there are hundreds of thousands to draw.
+ * Colours are packed ARGB ints, as from Color.getRGB(), and must be opaque.
+ *
+ * Everything covers the same pixels as its Graphics2D namesake would, and is
+ * clipped to the image. Text is still drawn with Graphics2D.
+ *
+ * @author sgp1000
+ */
+class Rasterizer
+{
+    int[] pixels;
+    int width;
+    int height;
+
+    public Rasterizer(BufferedImage image)
+    {
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    // as Graphics.fillRect(): 'w' by 'h' pixels from (x, y)
+    public void fillRect(int x, int y, int w, int h, int argb)
+    {
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = Math.min(x + w, width);
+        int y1 = Math.min(y + h, height);
+        for (int py = y0; py < y1; py++)
+        {
+            int row = py * width;
+            for (int px = x0; px < x1; px++)
+                pixels[row + px] = argb;
+        }
+    }
+
+    // as Graphics.drawRect(): an outline 'w' + 1 by 'h' + 1 pixels from (x, y)
+    public void drawRect(int x, int y, int w, int h, int argb)
+    {
+        if (w < 0 || h < 0)
+            return;
+
+        hline(x, x + w, y, argb);
+        hline(x, x + w, y + h, argb);
+        vline(x, y, y + h, argb);
+        vline(x + w, y, y + h, argb);
+    }
+
+    // from (x0, y) to (x1, y), inclusive
+    public void hline(int x0, int x1, int y, int argb)
+    {
+        if (y < 0 || y >= height)
+            return;
+
+        int row = y * width;
+        for (int px = Math.max(x0, 0); px <= Math.min(x1, width - 1); px++)
+            pixels[row + px] = argb;
+    }
+
+    // from (x, y0) to (x, y1), inclusive
+    public void vline(int x, int y0, int y1, int argb)
+    {
+        if (x < 0 || x >= width)
+            return;
+
+        for (int py = Math.max(y0, 0); py <= Math.min(y1, height - 1); py++)
+            pixels[py * width + x] = argb;
+    }
+}
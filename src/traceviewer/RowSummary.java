@@ -0,0 +1,315 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.Arrays;
+
+/**
+ * Summaries of one function's calls, so that drawing a row only has to look
+ * at the calls that show, however long the trace and however far out it is
+ * zoomed. Both are extended as calls are added and closed:
+ *
+ * - the running total of time spent in the function (outermost calls only,
+ *   as nested ones are inside them), from which busyTime() gets the time it
+ *   was busy during any time range with a couple of searches, and
+ *   summarise() a whole row of pixel columns in one pass;
+ *
+ * - max pyramids over the calls' end times and durations, in the row's
+ *   (start time) order: level 0 holds the maximum for each block of BLOCK
+ *   calls, and each level above the larger of two entries in the one below.
+ *   find() uses them to pick out the calls that end in view, or are long
+ *   enough to draw on their own, skipping whole blocks of calls that aren't.
+ *
+ * Calls still open count as ending at infinity here.
+ *
+ * @author sgp1000
+ */
+class RowSummary
+{
+    static final int BLOCK = 16;
+
+    IntervalTable table;
+    IntervalTable.Row row;
+
+    // row positions of the outermost calls, and the total length of those closed before each
+    int topCount = 0;
+    int[] top = new int[16];
+    int closedTop = 0;
+    long[] busy = new long[17];
+
+    MaxPyramid maxEnd = new MaxPyramid();
+    MaxPyramid maxDuration = new MaxPyramid();
+
+    /**
+     * The row positions find() picked out. Each caller has its own, so several
+     * threads can search the same row at once.
+     */
+    static class Found
+    {
+        int count = 0;
+        int[] positions = new int[16];
+
+        void add(int pos)
+        {
+            if (count == positions.length)
+                positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = pos;
+        }
+    }
+
+    /**
+     * Keeps the maximum of each block of BLOCK values, and of each pair of
+     * those, and so on up to a single maximum for them all.
+     */
+    static class MaxPyramid
+    {
+        long[][] levels = new long[0][];
+        int[] counts = new int[0];
+
+        void set(int block, long value)
+        {
+            if (levels.length == 0)
+                addLevel();
+            if (block >= counts[0])
+                grow(0, block + 1);
+            levels[0][block] = value;
+
+            // recompute the entries above it
+            int i = block;
+            for (int k = 1; k < levels.length || counts[k - 1] > 1; k++)
+            {
+                if (k == levels.length)
+                    addLevel();
+
+                int parent = i / 2;
+                if (parent >= counts[k])
+                    grow(k, parent + 1);
+
+                long max = levels[k - 1][parent * 2];
+                if (parent * 2 + 1 < counts[k - 1])
+                    max = Math.max(max, levels[k - 1][parent * 2 + 1]);
+                levels[k][parent] = max;
+                i = parent;
+            }
+        }
+
+        private void addLevel()
+        {
+            int k = levels.length;
+            levels = Arrays.copyOf(levels, k + 1);
+            counts = Arrays.copyOf(counts, k + 1);
+            levels[k] = new long[16];
+        }
+
+        private void grow(int k, int count)
+        {
+            counts[k] = count;
+            if (count > levels[k].length)
+                levels[k] = Arrays.copyOf(levels[k], Math.max(count, levels[k].length * 2));
+        }
+
+        long get(int k, int i)
+        {
+            return i < counts[k] ? levels[k][i] : Long.MIN_VALUE;
+        }
+    }
+
+    public RowSummary(IntervalTable table, IntervalTable.Row row)
+    {
+        this.table = table;
+        this.row = row;
+    }
+
+    // a call has just been added to the row, at position 'pos'
+    void added(int pos)
+    {
+        int id = row.ids[pos];
+        if (table.depths[id] == 0)
+        {
+            if (topCount == top.length)
+                top = Arrays.copyOf(top, topCount * 2);
+            top[topCount++] = pos;
+        }
+
+        maxEnd.set(pos / BLOCK, Long.MAX_VALUE);
+        maxDuration.set(pos / BLOCK, Long.MAX_VALUE);
+    }
+
+    // the call at position 'pos' has just exited
+    void closed(int pos)
+    {
+        int id = row.ids[pos];
+        if (table.depths[id] == 0)
+        {
+            // outermost calls exit in order
+            if (closedTop + 1 == busy.length)
+                busy = Arrays.copyOf(busy, busy.length * 2);
+            busy[closedTop + 1] = busy[closedTop] + (table.ends[id] - table.starts[id]);
+            closedTop++;
+        }
+
+        int block = pos / BLOCK;
+        long end = 0;
+        long duration = 0;
+        for (int p = block * BLOCK; p < Math.min(row.count, (block + 1) * BLOCK); p++)
+        {
+            end = Math.max(end, end(p));
+            duration = Math.max(duration, duration(p));
+        }
+        maxEnd.set(block, end);
+        maxDuration.set(block, duration);
+    }
+
+    private long end(int pos)
+    {
+        int id = row.ids[pos];
+        return table.ends[id] < 0 ? Long.MAX_VALUE : table.ends[id];
+    }
+
+    private long duration(int pos)
+    {
+        int id = row.ids[pos];
+        return table.ends[id] < 0 ? Long.MAX_VALUE : table.ends[id] - table.starts[id];
+    }
+
+    private long topStart(int j)
+    {
+        return table.starts[row.ids[top[j]]];
+    }
+
+    private long topEnd(int j, long last)
+    {
+        return table.getEnd(row.ids[top[j]], last);
+    }
+
+    // total length of the first 'j' outermost calls
+    private long topPrefix(int j, long last)
+    {
+        if (j <= closedTop)
+            return busy[j];
+        return busy[closedTop] + (last - topStart(closedTop));
+    }
+
+    // number of outermost calls starting before 't', searching forwards from 'from'
+    private int topsBefore(long t, int from)
+    {
+        // gallop, then binary search the last step
+        int step = 1;
+        while (from + step <= topCount && topStart(from + step - 1) < t)
+            step *= 2;
+
+        int lo = from + step / 2;
+        int hi = Math.min(from + step, topCount);
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (topStart(mid) < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // the total time the function was running for before 't', given 'j' = topsBefore(t)
+    private long busyBefore(long t, int j, long last)
+    {
+        if (j == 0)
+            return 0;
+        return topPrefix(j, last) - Math.max(0, topEnd(j - 1, last) - t);
+    }
+
+    /**
+     * Returns how long the function was running for between 't0' and 't1',
+     * counting calls still open as running until 'last'.
+     */
+    public long busyTime(long t0, long t1, long last)
+    {
+        int j0 = topsBefore(t0, 0);
+        int j1 = topsBefore(t1, j0);
+        return busyBefore(t1, j1, last) - busyBefore(t0, j0, last);
+    }
+
+    // number of calls starting before 't', searching forwards from position 'from'
+    private int callsBefore(long t, int from)
+    {
+        int step = 1;
+        while (from + step <= row.count && table.starts[row.ids[from + step - 1]] < t)
+            step *= 2;
+
+        int lo = from + step / 2;
+        int hi = Math.min(from + step, row.count);
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (table.starts[row.ids[mid]] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Summarises the 'n' time ranges between consecutive 'edges' (which must
+     * increase) in one pass: how many calls start in each, and how long the
+     * function was running for in each.
+     */
+    public void summarise(long[] edges, int n, long last, int[] calls, long[] busyTimes)
+    {
+        int pos = callsBefore(edges[0], 0);
+        int j = topsBefore(edges[0], 0);
+        long before = busyBefore(edges[0], j, last);
+        for (int c = 0; c < n; c++)
+        {
+            int next = callsBefore(edges[c + 1], pos);
+            calls[c] = next - pos;
+            pos = next;
+
+            j = topsBefore(edges[c + 1], j);
+            long upto = busyBefore(edges[c + 1], j, last);
+            busyTimes[c] = upto - before;
+            before = upto;
+        }
+    }
+
+    /**
+     * Finds the calls before row position 'end' that end at or after 'minEnd'
+     * and last at least 'minDuration', and leaves their positions (in order)
+     * in 'found'.
+     */
+    public void find(int end, long minEnd, long minDuration, Found found)
+    {
+        found.count = 0;
+        if (end > 0 && maxEnd.levels.length > 0)
+            collect(maxEnd.levels.length - 1, 0, end, minEnd, minDuration, found);
+    }
+
+    private void collect(int k, int i, int end, long minEnd, long minDuration, Found found)
+    {
+        if (maxEnd.get(k, i) < minEnd || maxDuration.get(k, i) < minDuration)
+            return;
+
+        // positions covered by entry i of level k
+        long span = (long)BLOCK << k;
+        long first = i * span;
+        if (first >= end)
+            return;
+
+        if (k > 0)
+        {
+            collect(k - 1, i * 2, end, minEnd, minDuration, found);
+            collect(k - 1, i * 2 + 1, end, minEnd, minDuration, found);
+            return;
+        }
+
+        for (int pos = (int)first; pos < Math.min(first + span, end); pos++)
+        {
+            if (end(pos) >= minEnd && duration(pos) >= minDuration)
+                found.add(pos);
+        }
+    }
+}
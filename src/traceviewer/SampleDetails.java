@@ -1,20 +0,0 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
-
-package traceviewer;
-
-/**
- *
- * @author sgp1000
- */
-class SampleDetails
-{
-    int func_id;
-    long time_stamp;
-    int sample_type;
-    int exit_point;
-    String debug_out;
-}
-
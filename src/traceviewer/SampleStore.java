@@ -0,0 +1,197 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.Arrays;
+
+/**
+ * Column-oriented storage for the trace samples.
+ *
+ * Each field lives in its own primitive array indexed by sample number, so a
+ * sample costs 17 bytes rather than an object header, its fields and a list slot.
+ * DEBUGOUT text is only carried by a small fraction of samples, so only its
+ * file offset is kept, in a sorted sample-index table (see DebugText).
+ *
+ * @author sgp1000
+ */
+class SampleStore
+{
+    int count = 0;
+    long[] timestamps;
+    int[] funcIds;
+    byte[] types;
+    int[] exitPoints;
+
+    // samples dropped from the front so far (see dropFirst())
+    long dropped = 0;
+
+    // debug text: samples that carry some (sorted), and where it is in the file
+    int debugCount = 0;
+    int[] debugSamples = new int[16];
+    long[] debugOffsets = new long[16];
+
+    public SampleStore(int capacity)
+    {
+        timestamps = new long[capacity];
+        funcIds = new int[capacity];
+        types = new byte[capacity];
+        exitPoints = new int[capacity];
+    }
+
+    /**
+     * Returns a copy sharing this store's arrays, frozen at the current size.
+     * The loader keeps appending past that size (or into new arrays once it
+     * grows), neither of which disturbs what the snapshot can see.
+     */
+    public SampleStore snapshot()
+    {
+        SampleStore snap = new SampleStore(0);
+        snap.count = count;
+        snap.dropped = dropped;
+        snap.timestamps = timestamps;
+        snap.funcIds = funcIds;
+        snap.types = types;
+        snap.exitPoints = exitPoints;
+        snap.debugCount = debugCount;
+        snap.debugSamples = debugSamples;
+        snap.debugOffsets = debugOffsets;
+        return snap;
+    }
+
+    /**
+     * Returns a new store holding everything except the first 'n' samples.
+     * The arrays are copied rather than shifted, so snapshots taken earlier
+     * stay intact.
+     */
+    public SampleStore dropFirst(int n)
+    {
+        SampleStore rest = new SampleStore(0);
+        rest.count = count - n;
+        rest.dropped = dropped + n;
+        rest.timestamps = Arrays.copyOfRange(timestamps, n, count);
+        rest.funcIds = Arrays.copyOfRange(funcIds, n, count);
+        rest.types = Arrays.copyOfRange(types, n, count);
+        rest.exitPoints = Arrays.copyOfRange(exitPoints, n, count);
+
+        int d = Arrays.binarySearch(debugSamples, 0, debugCount, n);
+        if (d < 0)
+            d = -d - 1;
+        rest.debugCount = debugCount - d;
+        rest.debugSamples = Arrays.copyOfRange(debugSamples, d, Math.max(d + 16, debugCount));
+        rest.debugOffsets = Arrays.copyOfRange(debugOffsets, d, Math.max(d + 16, debugCount));
+        for (int k = 0; k < rest.debugCount; k++)
+            rest.debugSamples[k] -= n;
+        return rest;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    public long getTimestamp(int idx)
+    {
+        return timestamps[idx];
+    }
+
+    public int getFuncId(int idx)
+    {
+        return funcIds[idx];
+    }
+
+    public int getType(int idx)
+    {
+        return types[idx];
+    }
+
+    public int getExitPoint(int idx)
+    {
+        return exitPoints[idx];
+    }
+
+    public long getLastTimestamp()
+    {
+        if (count == 0)
+            return 0;
+        return timestamps[count-1];
+    }
+
+    /**
+     * Returns the index of the first sample at or after 't' (or size() if
+     * there isn't one). Samples are in time order, so this is a binary search.
+     */
+    public int lowerBound(long t)
+    {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void grow()
+    {
+        int cap = Math.max(16, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, cap);
+        funcIds = Arrays.copyOf(funcIds, cap);
+        types = Arrays.copyOf(types, cap);
+        exitPoints = Arrays.copyOf(exitPoints, cap);
+    }
+
+    public int add(int func_id, long time_stamp, int sample_type, int exit_point)
+    {
+        if (count == timestamps.length)
+            grow();
+
+        timestamps[count] = time_stamp;
+        funcIds[count] = func_id;
+        types[count] = (byte)sample_type;
+        exitPoints[count] = exit_point;
+        return count++;
+    }
+
+    // for filling in a pre-sized store out of order (see TraceDetails.readChunks)
+    public void put(int idx, int func_id, long time_stamp, int sample_type, int exit_point)
+    {
+        timestamps[idx] = time_stamp;
+        funcIds[idx] = func_id;
+        types[idx] = (byte)sample_type;
+        exitPoints[idx] = exit_point;
+    }
+
+    /**
+     * Remembers that sample 'idx' carries a DEBUGOUT text block at 'offset'
+     * in the trace file. Samples must be added in order.
+     */
+    public void addDebugOut(int idx, long offset)
+    {
+        if (debugCount == debugSamples.length)
+        {
+            debugSamples = Arrays.copyOf(debugSamples, debugCount * 2);
+            debugOffsets = Arrays.copyOf(debugOffsets, debugCount * 2);
+        }
+
+        debugSamples[debugCount] = idx;
+        debugOffsets[debugCount] = offset;
+        debugCount++;
+    }
+
+    // file offset of the sample's DEBUGOUT text, or -1 if it doesn't have any
+    public long getDebugOffset(int idx)
+    {
+        int d = Arrays.binarySearch(debugSamples, 0, debugCount, idx);
+        if (d < 0)
+            return -1;
+
+        return debugOffsets[d];
+    }
+}
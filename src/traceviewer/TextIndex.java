@@ -0,0 +1,277 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * A word index of the DEBUGOUT text, for finding the samples whose text
+ * contains a string without reading all of it back from the trace.
+ *
+ * The text is split into words (runs of letters, digits and '_'), lower
+ * cased, and each word lists the text blocks it appears in, in order. A
+ * search looks up the words of the query, keeps the blocks that have all of
+ * them, and only reads those back to check them against the query itself.
+ * The words at either end of the query may only be part of a word in the
+ * text, so the words are also kept sorted, forwards and backwards, for
+ * finding those that start or end with them.
+ *
+ * Like IntervalTable, the index is built once and then extended as samples
+ * are appended, starting again if samples are dropped from the front. It is
+ * built and searched off the EDT, so everything here is synchronized.
+ *
+ * @author sgp1000
+ */
+class TextIndex
+{
+    /**
+     * The text blocks a word appears in, as positions in the sample store's
+     * debug text table (see SampleStore.debugSamples), in order.
+     */
+    static class Postings
+    {
+        int count = 0;
+        int[] blocks = new int[4];
+
+        void add(int d)
+        {
+            // a word can appear more than once in the same block
+            if (count > 0 && blocks[count - 1] == d)
+                return;
+
+            if (count == blocks.length)
+                blocks = Arrays.copyOf(blocks, count * 2);
+            blocks[count++] = d;
+        }
+    }
+
+    DebugText text;
+    Map<String, Postings> words = new HashMap<String, Postings>();
+
+    // the words, sorted, and spelt backwards and sorted (out of date once 'wordsChanged')
+    String[] sorted = new String[0];
+    String[] sortedBackwards = new String[0];
+    boolean wordsChanged = false;
+
+    // how far through which samples the index has got
+    SampleStore source = null;
+    int built = 0;
+
+    public TextIndex(DebugText text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * Brings the index up to date with 'samples', which mustn't change while
+     * this runs (a snapshot). Gives up part way if 'task' is cancelled or the
+     * thread is interrupted, and carries on from there next time.
+     */
+    public synchronized void update(SampleStore samples, Future<?> task)
+    {
+        if (source == null || samples.dropped != source.dropped || samples.debugCount < built)
+        {
+            words.clear();
+            wordsChanged = true;
+            built = 0;
+        }
+        source = samples;
+
+        for (; built < samples.debugCount; built++)
+        {
+            if ((built & 4095) == 0 && (task.isCancelled() || Thread.currentThread().isInterrupted()))
+                return;
+
+            String str = text.read(samples.debugOffsets[built]);
+            if (str != null)
+                addWords(str.toLowerCase(), built);
+        }
+
+        if (wordsChanged)
+        {
+            sorted = words.keySet().toArray(new String[words.size()]);
+            Arrays.sort(sorted);
+            sortedBackwards = new String[sorted.length];
+            for (int k = 0; k < sorted.length; k++)
+                sortedBackwards[k] = backwards(sorted[k]);
+            Arrays.sort(sortedBackwards);
+            wordsChanged = false;
+        }
+    }
+
+    private void addWords(String str, int d)
+    {
+        int start = -1;
+        for (int i = 0; i <= str.length(); i++)
+        {
+            if (i < str.length() && isWordChar(str.charAt(i)))
+            {
+                if (start < 0)
+                    start = i;
+            }
+            else if (start >= 0)
+            {
+                String word = str.substring(start, i);
+                Postings p = words.get(word);
+                if (p == null)
+                {
+                    p = new Postings();
+                    words.put(word, p);
+                    wordsChanged = true;
+                }
+                p.add(d);
+                start = -1;
+            }
+        }
+    }
+
+    private static boolean isWordChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Returns the samples (in time order) whose text contains 'query',
+     * ignoring case. Only text the index has got to is searched.
+     */
+    public synchronized int[] find(String query)
+    {
+        String q = query.toLowerCase();
+
+        // the text must have every word of the query in it. Words at either
+        // end of the query may just be the end or the start of a longer word
+        // in the text, so those match any word ending or starting with them.
+        BitSet candidates = null;
+        int start = -1;
+        for (int i = 0; i <= q.length(); i++)
+        {
+            if (i < q.length() && isWordChar(q.charAt(i)))
+            {
+                if (start < 0)
+                    start = i;
+            }
+            else if (start >= 0)
+            {
+                BitSet blocks = lookup(q.substring(start, i), start == 0, i == q.length());
+                if (candidates == null)
+                    candidates = blocks;
+                else
+                    candidates.and(blocks);
+                start = -1;
+            }
+        }
+
+        // then each candidate is checked against the query as a whole, unless
+        // the query is just part of one word, which they all have in them
+        if (candidates == null)
+        {
+            candidates = new BitSet(built);
+            candidates.set(0, built);
+        }
+        boolean one_word = true;
+        for (int i = 0; i < q.length(); i++)
+            one_word &= isWordChar(q.charAt(i));
+
+        int count = 0;
+        int[] found = new int[16];
+        for (int d = candidates.nextSetBit(0); d >= 0; d = candidates.nextSetBit(d + 1))
+        {
+            if (one_word || matches(d, q))
+            {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = source.debugSamples[d];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private boolean matches(int d, String q)
+    {
+        String str = text.read(source.debugOffsets[d]);
+        return str != null && str.toLowerCase().contains(q);
+    }
+
+    /**
+     * Returns the samples (in time order) with text that 'pattern' finds a
+     * match in. A regular expression can't be looked up by its words, so this
+     * reads back all the text the index has got to.
+     */
+    public synchronized int[] find(Pattern pattern)
+    {
+        int count = 0;
+        int[] found = new int[16];
+        for (int d = 0; d < built; d++)
+        {
+            if ((d & 4095) == 0 && Thread.currentThread().isInterrupted())
+                break;
+
+            String str = text.read(source.debugOffsets[d]);
+            if (str != null && pattern.matcher(str).find())
+            {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = source.debugSamples[d];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // the blocks with 'word' in them, or with a word ending or starting with it if 'suffix' or 'prefix'
+    private BitSet lookup(String word, boolean suffix, boolean prefix)
+    {
+        BitSet blocks = new BitSet(built);
+        if (suffix && prefix)
+        {
+            // anywhere in a word: no way round looking at them all
+            for (String w : sorted)
+            {
+                if (w.contains(word))
+                    add(blocks, words.get(w));
+            }
+        }
+        else if (prefix)
+        {
+            for (int k = lowerBound(sorted, word); k < sorted.length && sorted[k].startsWith(word); k++)
+                add(blocks, words.get(sorted[k]));
+        }
+        else if (suffix)
+        {
+            String drow = backwards(word);
+            for (int k = lowerBound(sortedBackwards, drow); k < sortedBackwards.length && sortedBackwards[k].startsWith(drow); k++)
+                add(blocks, words.get(backwards(sortedBackwards[k])));
+        }
+        else
+            add(blocks, words.get(word));
+        return blocks;
+    }
+
+    private static void add(BitSet blocks, Postings p)
+    {
+        if (p == null)
+            return;
+
+        for (int k = 0; k < p.count; k++)
+            blocks.set(p.blocks[k]);
+    }
+
+    // the first position in 'a' (sorted) of a string not before 's'
+    private static int lowerBound(String[] a, String s)
+    {
+        int k = Arrays.binarySearch(a, s);
+        return k < 0 ? -k - 1 : k;
+    }
+
+    private static String backwards(String s)
+    {
+        return new StringBuilder(s).reverse().toString();
+    }
+}
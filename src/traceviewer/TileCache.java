@@ -0,0 +1,126 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rendered pieces of the trace area, so scrolling only has to draw what has
+ * just come into view, and zooming back out (or in) finds the last frame
+ * drawn at that zoom still here.
+ *
+ * The timeline is cut into tiles of TILE_WIDTH pixel columns by TILE_ROWS
+ * rows. Columns are counted from timestamp 0 (see Viewport.pixelOf()), so a
+ * tile shows the same thing wherever the view is scrolled to, and is keyed by
+ * the zoom, its column and row band, and whether it has the details boxes.
+ * The least recently drawn tiles are dropped once they use more than
+ * maxBytes. Anything that changes what tiles show (new samples, rows moved)
+ * must clear() the cache, which also moves 'generation' on, so tiles that
+ * were still being drawn from what they showed before can be told apart.
+ *
+ * @author sgp1000
+ */
+class TileCache
+{
+    static final int TILE_WIDTH = 256;
+    static final int TILE_ROWS = 16;
+
+    static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Says which tile is which. Keys in the cache are never changed; the one
+     * get() looks tiles up with is reused, so a frame that is all cached
+     * doesn't allocate one per tile.
+     */
+    static class Key
+    {
+        long zoom;
+        long column;
+        int band;
+        boolean details;
+
+        Key(long zoom, long column, int band, boolean details)
+        {
+            this.zoom = zoom;
+            this.column = column;
+            this.band = band;
+            this.details = details;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return zoom == k.zoom && column == k.column && band == k.band && details == k.details;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = zoom * 31 + column;
+            h = h * 31 + band;
+            return (int)(h ^ (h >>> 32)) * 2 + (details ? 1 : 0);
+        }
+    }
+
+    // in access order, so the eldest entry is the least recently used
+    Map<Key, BufferedImage> tiles = new LinkedHashMap<Key, BufferedImage>(64, 0.75f, true);
+    long bytes = 0;
+    long maxBytes = MAX_BYTES;
+    int generation = 0;
+
+    private final Key probe = new Key(0, 0, 0, false);
+
+    // the tile column holding absolute pixel column 'px'
+    public static long columnOf(long px)
+    {
+        return px >= 0 ? px / TILE_WIDTH : (px + 1) / TILE_WIDTH - 1;
+    }
+
+    public BufferedImage get(long zoom, long column, int band, boolean details)
+    {
+        probe.zoom = zoom;
+        probe.column = column;
+        probe.band = band;
+        probe.details = details;
+        return tiles.get(probe);
+    }
+
+    public void put(Key key, BufferedImage tile)
+    {
+        BufferedImage old = tiles.put(key, tile);
+        if (old != null)
+            bytes -= sizeOf(old);
+        bytes += sizeOf(tile);
+
+        Iterator<BufferedImage> it = tiles.values().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            BufferedImage eldest = it.next();
+            if (eldest == tile)
+                break;
+            bytes -= sizeOf(eldest);
+            it.remove();
+        }
+    }
+
+    public void clear()
+    {
+        tiles.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    private static long sizeOf(BufferedImage tile)
+    {
+        return 4L * tile.getWidth() * tile.getHeight();
+    }
+}
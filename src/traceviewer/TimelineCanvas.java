@@ -0,0 +1,133 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import javax.swing.JComponent;
+
+/**
+ * Shows the trace. Frames are drawn into a back buffer (see beginFrame()),
+ * and painting just copies the part of it Swing asks for, so an expose or a
+ * tooltip going away doesn't redraw the trace.
+ *
+ * Anything that changes more often than the trace itself (the selection and
+ * cursors) is drawn by the Overlay on top, as it is painted, so changing it
+ * only needs a repaint, not a new frame.
+ *
+ * The buffer is kept from frame to frame, so drawing doesn't allocate a new
+ * window-sized image each time. It only grows, and is otherwise reused as is
+ * when the window shrinks. Only the part of a frame that differs from the
+ * last one is painted again (see endFrame()).
+ *
+ * @author sgp1000
+ */
+class TimelineCanvas extends JComponent
+{
+    private static final long serialVersionUID = 1L;
+
+    BufferedImage buffer = null;
+
+    /**
+     * Draws on top of the frame whenever it is painted.
+     */
+    interface Overlay
+    {
+        void paintOverlay(Graphics2D g2d);
+    }
+
+    Overlay overlay = null;
+
+    public TimelineCanvas()
+    {
+        setOpaque(true);
+    }
+
+    /**
+     * Returns a Graphics2D for drawing the next frame, clipped to the size of
+     * the component. Call endFrame() with it when done.
+     */
+    public Graphics2D beginFrame()
+    {
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        if (buffer == null || buffer.getWidth() < width || buffer.getHeight() < height)
+        {
+            if (buffer != null)
+            {
+                // grow a bit more than needed, so dragging the window bigger doesn't reallocate every step
+                width = Math.max(width, buffer.getWidth() + buffer.getWidth() / 4);
+                height = Math.max(height, buffer.getHeight() + buffer.getHeight() / 4);
+            }
+
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            if (gc != null)
+                buffer = gc.createCompatibleImage(width, height);
+            else
+                buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        Graphics2D g2d = buffer.createGraphics();
+        g2d.setClip(0, 0, getWidth(), getHeight());
+        return g2d;
+    }
+
+    // shows the frame drawn since beginFrame(), where it differs from the last one ('dirty')
+    public void endFrame(Graphics2D g2d, Rectangle dirty)
+    {
+        g2d.dispose();
+        if (!dirty.isEmpty())
+            repaint(dirty);
+    }
+
+    public void setOverlay(Overlay overlay)
+    {
+        this.overlay = overlay;
+        repaint();
+    }
+
+    // the last frame drawn (which may be bigger than the component)
+    public BufferedImage getFrame()
+    {
+        return buffer;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        // anything not drawn yet (nothing loaded, or grown since the last frame)
+        if (buffer == null || clip.x + clip.width > buffer.getWidth() || clip.y + clip.height > buffer.getHeight())
+        {
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            if (buffer == null)
+                return;
+        }
+
+        g.drawImage(buffer, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height,
+                clip.x, clip.y, clip.x + clip.width, clip.y + clip.height, null);
+
+        if (overlay != null)
+        {
+            Graphics2D g2d = (Graphics2D)g.create();
+            try
+            {
+                overlay.paintOverlay(g2d);
+            }
+            finally
+            {
+                g2d.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The block-compressed trace container (.tvz).
+ *
+ * The trace's header (the function table and sample count) is kept as is,
+ * and its sample records are split into blocks of BLOCK_SAMPLES records that
+ * are each deflated on their own. A directory at the end of the file gives
+ * every block's position, sizes and first/last timestamp, so blocks can be
+ * decompressed independently, in parallel, or only when needed (the ones
+ * holding a time range, see blocksBetween()):
+ *
+ *   int magic, int version, int block_samples, int header_len
+ *   byte[header_len]   header, exactly as in the uncompressed trace
+ *   ...                compressed blocks
+ *   int num_blocks, then per block:
+ *       long offset, int comp_len, int raw_len, int count, long first_ts, long last_ts
+ *   long directory offset
+ *
+ * Each block decompresses to the same bytes as its records in the
+ * uncompressed trace, and keeps its offset there ('rawOffset'), so DEBUGOUT
+ * offsets mean the same thing for both layouts.
+ *
+ * @author sgp1000
+ */
+class TraceArchive
+{
+    static final int MAGIC = 0x425A5654;    // "TVZB"
+    static final int VERSION = 1;
+    static final int BLOCK_SAMPLES = 64 * 1024;
+
+    static final int DIR_ENTRY_SIZE = 8 + 4 + 4 + 4 + 8 + 8;
+
+    // what sort of file a trace is (see formatOf())
+    static final int FORMAT_RAW = 0;
+    static final int FORMAT_ARCHIVE = 1;
+    static final int FORMAT_GZIP = 2;
+
+    static class Block
+    {
+        long offset;        // of the compressed data in the archive
+        int compLen;
+        long rawOffset;     // of the records in the uncompressed trace
+        int rawLen;
+        int first;          // index of the block's first sample
+        int count;
+        long firstTs;
+        long lastTs;
+    }
+
+    int blockSamples;
+    long headerOffset;
+    int headerLen;
+    Block[] blocks;
+
+    /**
+     * Tells the formats apart by their first few bytes. An uncompressed trace
+     * starts with its function count, which won't look like either magic number.
+     */
+    public static int formatOf(String file) throws IOException
+    {
+        byte[] b = new byte[4];
+        FileInputStream f = new FileInputStream(new File(file));
+        try
+        {
+            if (f.read(b) < 4)
+                return FORMAT_RAW;
+        }
+        finally
+        {
+            f.close();
+        }
+
+        if ((b[0] & 0xff) == 0x1f && (b[1] & 0xff) == 0x8b && b[2] == Deflater.DEFLATED)
+            return FORMAT_GZIP;
+        if (ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC)
+            return FORMAT_ARCHIVE;
+        return FORMAT_RAW;
+    }
+
+    /**
+     * Reads the archive's layout and block directory. The header itself is
+     * left for the caller to decode, from 'headerOffset'.
+     */
+    public static TraceArchive open(FileChannel ch) throws IOException
+    {
+        TraceInput in = new TraceInput(ch);
+        ByteBuffer bb = in.need(16);
+        if (bb.getInt() != MAGIC || bb.getInt() != VERSION)
+            throw new IOException("Not a compressed trace, or an unsupported version of one");
+
+        TraceArchive arc = new TraceArchive();
+        arc.blockSamples = bb.getInt();
+        arc.headerLen = bb.getInt();
+        arc.headerOffset = in.position();
+
+        in = new TraceInput(ch, in.length() - 8);
+        long dir_offset = in.need(8).getLong();
+        in = new TraceInput(ch, dir_offset);
+
+        int num_blocks = in.need(4).getInt();
+        arc.blocks = new Block[num_blocks];
+        long raw_offset = arc.headerLen;
+        int first = 0;
+        for (int k = 0; k < num_blocks; k++)
+        {
+            bb = in.need(DIR_ENTRY_SIZE);
+            Block b = new Block();
+            b.offset = bb.getLong();
+            b.compLen = bb.getInt();
+            b.rawLen = bb.getInt();
+            b.count = bb.getInt();
+            b.firstTs = bb.getLong();
+            b.lastTs = bb.getLong();
+            b.rawOffset = raw_offset;
+            b.first = first;
+            raw_offset += b.rawLen;
+            first += b.count;
+            arc.blocks[k] = b;
+        }
+        return arc;
+    }
+
+    /**
+     * Returns the blocks holding the samples from 't0' to 't1'. Samples are in
+     * time order, so the blocks are too, and both ends are binary searches of
+     * the directory's timestamps.
+     */
+    public List<Block> blocksBetween(long t0, long t1)
+    {
+        // the first block ending at or after 't0'
+        int lo = 0;
+        int hi = blocks.length;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (blocks[mid].lastTs < t0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int first = lo;
+
+        // and the first starting after 't1'
+        hi = blocks.length;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (blocks[mid].firstTs <= t1)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return Arrays.asList(blocks).subList(first, lo);
+    }
+
+    // decompresses one block (safe to call from several threads at once)
+    public static byte[] inflate(FileChannel ch, Block b) throws IOException
+    {
+        ByteBuffer comp = ByteBuffer.allocate(b.compLen);
+        while (comp.hasRemaining())
+        {
+            if (ch.read(comp, b.offset + comp.position()) == -1)
+                throw new IOException("Compressed trace truncated at offset " + (b.offset + comp.position()));
+        }
+
+        Inflater inf = new Inflater();
+        try
+        {
+            inf.setInput(comp.array());
+            byte[] raw = new byte[b.rawLen];
+            int n = 0;
+            while (n < raw.length && !inf.finished())
+            {
+                int got = inf.inflate(raw, n, raw.length - n);
+                if (got == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    break;
+                n += got;
+            }
+            if (n != raw.length)
+                throw new IOException("Corrupt block at offset " + b.offset);
+            return raw;
+        } catch (DataFormatException ex)
+        {
+            throw new IOException("Corrupt block at offset " + b.offset, ex);
+        }
+        finally
+        {
+            inf.end();
+        }
+    }
+
+    /**
+     * Gets told how write() is getting on, and whether to give up.
+     */
+    interface WriteMonitor
+    {
+        boolean isCancelled();
+
+        void writeProgress(long bytes, long total);
+    }
+
+    /**
+     * Writes a compressed copy of the uncompressed trace 'src' to 'dst'. Any
+     * partly written record at the end of 'src' is left out.
+     *
+     * Returns false if the monitor cancelled it (in which case 'dst' is removed).
+     */
+    public static boolean write(String src, String dst, WriteMonitor monitor) throws IOException
+    {
+        FileInputStream fin = new FileInputStream(new File(src));
+        RandomAccessFile fout = new RandomAccessFile(dst, "rw");
+        boolean done = false;
+        try
+        {
+            fout.setLength(0);
+            FileChannel out = fout.getChannel();
+            TraceInput in = new TraceInput(fin.getChannel());
+
+            // the header is copied across as it is
+            int num_func_ids = in.need(4).getInt(0);
+            int header_len = 4 + num_func_ids * (4 + 128) + 4;
+            byte[] header = new byte[header_len];
+            in.readBytes(header, header_len);
+            int num_samples = ByteBuffer.wrap(header, header_len - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+            ByteBuffer bb = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            bb.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_SAMPLES).putInt(header_len);
+            bb.flip();
+            writeFully(out, bb);
+            writeFully(out, ByteBuffer.wrap(header));
+
+            ByteBuffer dir = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+            int num_blocks = 0;
+            byte[] comp = new byte[64 * 1024];
+            Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            try
+            {
+                int k = 0;
+                while (k < num_samples && !monitor.isCancelled())
+                {
+                    // find how far this block's records go
+                    long start = in.position();
+                    long first_ts = 0;
+                    long last_ts = 0;
+                    int count = 0;
+                    while (count < BLOCK_SAMPLES && k < num_samples && in.has(TraceDetails.SAMPLE_SIZE))
+                    {
+                        ByteBuffer rec = in.need(TraceDetails.SAMPLE_SIZE);
+                        int size = TraceDetails.SAMPLE_SIZE;
+                        if (rec.getInt(rec.position() + 12) == TraceDetails.TYPE_DEBUGOUT)
+                            size += TraceDetails.DEBUGOUT_SIZE;
+                        if (!in.has(size))
+                            break;
+
+                        last_ts = rec.getLong(rec.position() + 4);
+                        if (count == 0)
+                            first_ts = last_ts;
+                        in.skip(size);
+                        count++;
+                        k++;
+                    }
+                    if (count == 0)
+                        break;
+
+                    ByteBuffer rawbuf = ByteBuffer.allocate((int)(in.position() - start));
+                    while (rawbuf.hasRemaining())
+                        fin.getChannel().read(rawbuf, start + rawbuf.position());
+                    byte[] raw = rawbuf.array();
+
+                    long offset = out.position();
+                    def.reset();
+                    def.setInput(raw);
+                    def.finish();
+                    while (!def.finished())
+                    {
+                        int n = def.deflate(comp);
+                        writeFully(out, ByteBuffer.wrap(comp, 0, n));
+                    }
+
+                    if (dir.remaining() < DIR_ENTRY_SIZE)
+                    {
+                        ByteBuffer bigger = ByteBuffer.allocate(dir.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                        dir.flip();
+                        bigger.put(dir);
+                        dir = bigger;
+                    }
+                    dir.putLong(offset).putInt((int)(out.position() - offset)).putInt(raw.length);
+                    dir.putInt(count).putLong(first_ts).putLong(last_ts);
+                    num_blocks++;
+
+                    monitor.writeProgress(in.position(), in.length());
+                }
+            }
+            finally
+            {
+                def.end();
+            }
+
+            if (monitor.isCancelled())
+                return false;
+
+            long dir_offset = out.position();
+            bb.clear();
+            bb.putInt(num_blocks);
+            bb.flip();
+            writeFully(out, bb);
+            dir.flip();
+            writeFully(out, dir);
+            bb.clear();
+            bb.putLong(dir_offset);
+            bb.flip();
+            writeFully(out, bb);
+            done = true;
+            return true;
+        }
+        finally
+        {
+            fin.close();
+            fout.close();
+            if (!done)
+                new File(dst).delete();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bb) throws IOException
+    {
+        while (bb.hasRemaining())
+            out.write(bb);
+    }
+
+    /**
+     * DEBUGOUT text for a compressed archive. The text is found by its offset
+     * in the uncompressed trace, and the block holding it is decompressed on
+     * demand; the last few blocks are kept, as neighbouring samples tend to be
+     * looked at together.
+     */
+    static class BlockText extends DebugText
+    {
+        static final int BLOCK_CACHE_SIZE = 8;
+
+        TraceArchive arc;
+
+        Map<Integer, byte[]> blockCache = new LinkedHashMap<Integer, byte[]>(BLOCK_CACHE_SIZE, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest)
+            {
+                return size() > BLOCK_CACHE_SIZE;
+            }
+        };
+
+        public BlockText(String file, TraceArchive arc, int blocksize) throws IOException
+        {
+            super(file, blocksize);
+            this.arc = arc;
+        }
+
+        private int findBlock(long offset)
+        {
+            int lo = 0;
+            int hi = arc.blocks.length - 1;
+            while (lo < hi)
+            {
+                int mid = (lo + hi + 1) >>> 1;
+                if (arc.blocks[mid].rawOffset <= offset)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;
+        }
+
+        @Override
+        public synchronized String read(long offset)
+        {
+            int b = findBlock(offset);
+            try
+            {
+                byte[] raw = blockCache.get(b);
+                if (raw == null)
+                {
+                    raw = inflate(ch, arc.blocks[b]);
+                    blockCache.put(b, raw);
+                }
+                int pos = (int)(offset - arc.blocks[b].rawOffset);
+                return new String(raw, pos, Math.min(blocksize, raw.length - pos)).trim();
+            } catch (IOException ex)
+            {
+                Logger.getLogger(DebugText.class.getName()).log(Level.SEVERE, null, ex);
+                return null;
+            }
+        }
+    }
+}
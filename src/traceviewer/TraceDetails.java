@@ -19,18 +19,25 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.ImageIcon;
-import javax.swing.JLabel;
+import java.util.zip.GZIPInputStream;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
 /**
  *
@@ -38,137 +45,697 @@ import javax.swing.JLabel;
  */
 class TraceDetails
 {
-    Map<Integer, String> mapFuncIds;
-    List<Integer> lstFIDs;
+    FunctionTable functions;
     String logfile;
-    List<SampleDetails> lstSamples;
+    SampleStore samples;
+    IntervalTable intervals;
+    DebugText debugText;
 
-    private int readInteger(FileChannel ch) throws IOException
+    // the calls in the samples load() hands out, paired up by the loader as
+    // they arrive (see setSamples())
+    volatile IntervalTable loadedIntervals = new IntervalTable();
+
+    // the index of a trace that has just been parsed, saved once its intervals are paired up
+    private TraceIndex newIndex = null;
+
+    long loadBytes = 0;
+    long loadMillis = 0;
+
+    /**
+     * Gets told how load() is getting on. load() runs on a background
+     * thread, so implementations must hand results over to the EDT themselves.
+     */
+    interface LoadMonitor
+    {
+        boolean isCancelled();
+
+        // 'loaded' is a snapshot of the samples decoded so far
+        void loadProgress(long bytes, long total, SampleStore loaded);
+    }
+
+    // report progress at most this often (in ms) while loading
+    static final long PROGRESS_INTERVAL = 250;
+
+    // the times in view as loading starts (see loadArchive())
+    long viewStart = 0;
+    long viewEnd = -1;
+
+    public TraceDetails(String file)
     {
-        ByteBuffer bi = ByteBuffer.allocate(4);
-        bi.order(ByteOrder.LITTLE_ENDIAN);
+        functions = new FunctionTable();
+        samples = new SampleStore(0);
+        intervals = new IntervalTable();
 
-        int nRead;
-        while ( (nRead = ch.read(bi)) != -1)
+        logfile = file;
+    }
+
+    /**
+     * Reads the function table and the samples from the trace file, which may
+     * be uncompressed, a compressed archive (see TraceArchive) or gzip'd.
+     *
+     * The function table is filled in directly, so this object must not be
+     * shared with the EDT until the first loadProgress() call. The samples go
+     * into a new store, which is handed out in snapshots along the way, and
+     * kept for readAppended() to add to. A snapshot of it is returned once it
+     * is complete (or once the monitor asks to cancel).
+     *
+     * The calls are paired up here too, as each run of samples is decoded, so
+     * every snapshot is handed out with them already paired (in
+     * loadedIntervals) and the EDT never has to.
+     */
+    public SampleStore load(LoadMonitor monitor) throws IOException
+    {
+        long t0 = System.currentTimeMillis();
+        SampleStore store;
+        SampleStore loaded;
+        try
         {
-            if (nRead == 0)
-                continue;
-            return bi.getInt(0);
+            switch (TraceArchive.formatOf(logfile))
+            {
+                case TraceArchive.FORMAT_ARCHIVE:
+                    store = loadArchive(monitor);
+                    break;
+                case TraceArchive.FORMAT_GZIP:
+                    store = loadGzip(monitor);
+                    break;
+                default:
+                    store = loadRaw(monitor);
+                    break;
+            }
+
+            // pairs up whatever the last snapshot didn't have
+            tail = store;
+            loaded = store.snapshot();
+            if (!monitor.isCancelled())
+                loadedIntervals.update(loaded);
+        }
+        finally
+        {
+            loadMillis = System.currentTimeMillis() - t0;
         }
-        return -1;
+
+        if (newIndex != null && !monitor.isCancelled())
+        {
+            newIndex.intervals = loadedIntervals;
+            newIndex.writeLater(logfile);
+        }
+        newIndex = null;
+
+        Logger.getLogger(TraceDetails.class.getName()).log(Level.INFO,
+                "Loaded {0} samples from \"{1}\": {2}", new Object[] { store.size(), logfile, getLoadStats() });
+        return loaded;
     }
 
-    private long readLong(FileChannel ch) throws IOException
+    /**
+     * Shows 'loaded' (the result of load() or readAppended(), or a snapshot
+     * along the way), with the calls they have paired up. They may already
+     * go on past 'loaded', as the loader carries on pairing meanwhile. Must
+     * be called on the EDT.
+     */
+    public void setSamples(SampleStore loaded)
     {
-        ByteBuffer bl = ByteBuffer.allocate(8);
-        bl.order(ByteOrder.LITTLE_ENDIAN);
+        // the loader has moved on from these samples to a new table (see
+        // loadArchive() and readAppended())
+        IntervalTable table = loadedIntervals;
+        if (!table.isFor(loaded))
+            return;
+
+        samples = loaded;
+        intervals = table;
+        clearTiles();
+    }
 
-        int nRead;
-        while ( (nRead = ch.read(bl)) != -1)
+    /**
+     * Reads the function-id mapping, and allocates each function a colour.
+     * Returns the number of functions.
+     */
+    private int readFunctionTable(TraceInput in) throws IOException
+    {
+        int num_func_ids = in.need(4).getInt();
+
+        // read the function-id mapping
+        for (int k = 0; k < num_func_ids; k++)
         {
-            if (nRead == 0)
-                continue;
-            return bl.getLong(0);
+            int func_id = in.need(4).getInt();
+            String func_name = in.readString(128);
+
+            // allocate colour (if not allocated already
+            double mix = 0.6;
+            double invmix = 1.0 - mix;
+            int r = (int)((mix + invmix * Math.random())*255);
+            int g = (int)((mix + invmix * Math.random())*255);
+            int b = (int)((mix + invmix * Math.random())*255);
+            Color clr = new Color(r, g, b);
+            functions.add(func_id, func_name, clr);
         }
-        return -1;
+        return num_func_ids;
     }
 
-    private BigInteger readLongLong(FileChannel ch) throws IOException
+    private SampleStore loadRaw(LoadMonitor monitor) throws IOException
     {
-        ByteBuffer bll = ByteBuffer.allocate(16);
-        bll.order(ByteOrder.LITTLE_ENDIAN);
-
-        int nRead;
-        while ( (nRead = ch.read(bll)) != -1)
+        // a fresh sidecar index saves parsing the trace again
+        TraceIndex index = TraceIndex.read(logfile);
+        if (index != null)
         {
-            if (nRead == 0)
-                continue;
+            index.fillFunctionTable(functions);
+            debugText = new DebugText(logfile, DEBUGOUT_SIZE);
+            tailOffset = index.tailOffset;
+
+            // the file may have grown while the index was being written
+            SampleStore store = index.samples;
+            FileInputStream f = new FileInputStream(new File(logfile));
+            try
+            {
+                FileChannel ch = f.getChannel();
+                if (ch.size() - tailOffset >= SAMPLE_SIZE)
+                    tailOffset = readSamples(new TraceInput(ch, tailOffset), store, Long.MAX_VALUE);
+            }
+            finally
+            {
+                f.close();
+            }
+            loadBytes = tailOffset;
 
-            return new BigInteger(bll.array());
+            // the saved intervals just need the new samples paired up (see load())
+            if (index.intervals != null)
+                loadedIntervals = index.intervals;
+            Logger.getLogger(TraceDetails.class.getName()).log(Level.INFO, "Using index of \"{0}\"", logfile);
+            return store;
         }
+        index = new TraceIndex();
+
+        SampleStore store = new SampleStore(0);
+        FileInputStream f = new FileInputStream(new File(logfile));
+        try
+        {
+            TraceInput in = new TraceInput(f.getChannel());
+            readFunctionTable(in);
+
+            // keep the table as read, for the index (rows get moved around once shown)
+            int num_funcs = functions.size();
+            index.funcIds = Arrays.copyOf(functions.ids, num_funcs);
+            index.funcNames = Arrays.copyOf(functions.names, num_funcs);
+            index.funcColors = new int[num_funcs];
+            for (int k = 0; k < num_funcs; k++)
+                index.funcColors[k] = functions.colors[k].getRGB();
+
+            debugText = new DebugText(logfile, DEBUGOUT_SIZE);
 
-        return null;
+            int num_samples = in.need(4).getInt();
+            monitor.loadProgress(in.position(), in.length(), store.snapshot());
+
+            // find the chunk boundaries, then decode the chunks on all cores
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            tailOffset = findChunks(in, num_samples, chunks, monitor);
+
+            int found = 0;
+            if (!chunks.isEmpty())
+                found = chunks.get(chunks.size()-1).first + chunks.get(chunks.size()-1).count;
+            store = new SampleStore(found);
+
+            // scanning was the first half of the work, decoding is the second
+            readChunks(f.getChannel(), chunks, store, monitor, in.length(), 2 * in.length());
+            checkSampleCount(found, num_samples, monitor);
+
+            loadBytes = tailOffset;
+
+            // only index complete parses; the store isn't touched again until
+            // it is published, and then only through snapshots or copies
+            if (!monitor.isCancelled())
+            {
+                index.tailOffset = tailOffset;
+                index.samples = store.snapshot();
+                newIndex = index;
+            }
+        }
+        finally
+        {
+            f.close();
+        }
+        return store;
     }
 
-    private String readString(FileChannel ch, int bytes) throws IOException
+    /**
+     * Loads a block-compressed archive. Its directory already says where
+     * every block and sample is, so the blocks go straight to the workers.
+     * Only the samples are kept; DEBUGOUT text is decompressed when shown.
+     *
+     * If the view (viewStart to viewEnd) is further on than the first few
+     * blocks, the blocks it shows are decompressed first, and handed out on
+     * their own (as if the samples before them had been dropped), so it isn't
+     * blank until the loader catches up with it.
+     */
+    private SampleStore loadArchive(LoadMonitor monitor) throws IOException
     {
-        ByteBuffer bs = ByteBuffer.allocate(bytes);
-        int nRead;
-        while ( (nRead = ch.read(bs)) != -1)
+        SampleStore store = new SampleStore(0);
+        FileInputStream f = new FileInputStream(new File(logfile));
+        try
         {
-            if (nRead == 0)
-                continue;
-            bs.position(0);
-            bs.limit(bytes);
-            return new String(bs.array());
+            FileChannel ch = f.getChannel();
+            TraceArchive arc = TraceArchive.open(ch);
+            TraceInput in = new TraceInput(ch, arc.headerOffset);
+            readFunctionTable(in);
+
+            debugText = new TraceArchive.BlockText(logfile, arc, DEBUGOUT_SIZE);
+            followable = false;
+
+            int num_samples = in.need(4).getInt();
+            monitor.loadProgress(0, 1, store.snapshot());
+
+            List<Chunk> chunks = chunksOf(Arrays.asList(arc.blocks));
+            long raw_length = chunks.isEmpty() ? arc.headerLen : chunks.get(chunks.size()-1).end;
+
+            List<TraceArchive.Block> view = arc.blocksBetween(viewStart, viewEnd);
+            if (!view.isEmpty() && view.get(0).first > 0 && view.size() * PREVIEW_DIVISOR <= arc.blocks.length)
+            {
+                List<Chunk> view_chunks = chunksOf(view);
+                Chunk last = view_chunks.get(view_chunks.size()-1);
+                SampleStore part = new SampleStore(last.first + last.count);
+                part.dropped = view.get(0).first;
+                readChunks(ch, view_chunks, part, monitor, 0, raw_length);
+                if (monitor.isCancelled())
+                    return part;
+                monitor.loadProgress(0, raw_length, part.snapshot());
+
+                // the whole trace is paired up afresh
+                loadedIntervals = new IntervalTable();
+            }
+
+            int found = 0;
+            if (arc.blocks.length > 0)
+                found = arc.blocks[arc.blocks.length-1].first + arc.blocks[arc.blocks.length-1].count;
+            store = new SampleStore(found);
+            readChunks(ch, chunks, store, monitor, 0, raw_length);
+            checkSampleCount(found, num_samples, monitor);
+
+            loadBytes = ch.size();
+        }
+        finally
+        {
+            f.close();
         }
-        return null;
+        return store;
     }
 
-    public TraceDetails(String file)
+    // the view is only decoded first if it is at most 1/PREVIEW_DIVISOR of the archive's blocks
+    static final int PREVIEW_DIVISOR = 4;
+
+    /**
+     * Makes a chunk of each archive block. Their samples are numbered from
+     * the first block's, so they can be decoded into a store of their own.
+     */
+    private static List<Chunk> chunksOf(List<TraceArchive.Block> blocks)
     {
-        mapFuncIds = new HashMap<Integer, String>();
-        lstSamples = new ArrayList<SampleDetails>();
-        lstFIDs = new ArrayList<Integer>();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (TraceArchive.Block block : blocks)
+        {
+            Chunk chunk = new Chunk();
+            chunk.block = block;
+            chunk.offset = block.rawOffset;
+            chunk.first = block.first - blocks.get(0).first;
+            chunk.count = block.count;
+            chunk.end = block.rawOffset + block.rawLen;
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
 
-        logfile = file;
+    // samples decoded between progress checks, when streaming
+    static final int STREAM_STEP = 64 * 1024;
 
+    /**
+     * Loads a gzip'd trace, decompressing it as it is read. It can only be
+     * read from start to end, so the DEBUGOUT text is kept in memory.
+     */
+    private SampleStore loadGzip(LoadMonitor monitor) throws IOException
+    {
+        SampleStore store = new SampleStore(0);
+        FileInputStream f = new FileInputStream(new File(logfile));
         try
         {
-            FileInputStream f = new FileInputStream(new File(file));
             FileChannel ch = f.getChannel();
-            ByteBuffer bb = ByteBuffer.allocate(32768);
-            int nRead;
+            TraceInput in = new TraceInput(Channels.newChannel(new GZIPInputStream(f, 64 * 1024)));
+            readFunctionTable(in);
+
+            debugText = new DebugText.Pool(DEBUGOUT_SIZE);
+            followable = false;
+
+            int num_samples = in.need(4).getInt();
+            monitor.loadProgress(ch.position(), ch.size(), store.snapshot());
+
+            long last_report = System.currentTimeMillis();
+            while (store.size() < num_samples && !monitor.isCancelled())
+            {
+                int before = store.size();
+                readSamples(in, store, Math.min(STREAM_STEP, num_samples - before));
+                if (store.size() == before)
+                    break;
+
+                SampleStore snap = store.snapshot();
+                loadedIntervals.update(snap);
+
+                long now = System.currentTimeMillis();
+                if (now - last_report >= PROGRESS_INTERVAL)
+                {
+                    monitor.loadProgress(ch.position(), ch.size(), snap);
+                    last_report = now;
+                }
+            }
+            checkSampleCount(store.size(), num_samples, monitor);
+
+            loadBytes = ch.size();
+        }
+        finally
+        {
+            f.close();
+        }
+        return store;
+    }
+
+    private void checkSampleCount(int found, int num_samples, LoadMonitor monitor)
+    {
+        if (found < num_samples && !monitor.isCancelled())
+        {
+            Logger.getLogger(TraceDetails.class.getName()).log(Level.WARNING,
+                    "Trace ends after {0} of {1} samples", new Object[] { found, num_samples });
+        }
+    }
+
+    // samples per chunk, when splitting the sample section up for parallel decoding
+    static final int CHUNK_SAMPLES = 1 << 20;
+
+    /**
+     * A run of consecutive sample records, decoded by one worker. The DEBUGOUT
+     * offsets it finds are collected here and merged into the store afterwards.
+     */
+    static class Chunk
+    {
+        TraceArchive.Block block;   // if it comes from a compressed archive
+        long offset;
+        int first;
+        int count;
+        long end;
+
+        int debugCount = 0;
+        int[] debugSamples = new int[16];
+        long[] debugOffsets = new long[16];
+
+        void addDebugOut(int idx, long offset)
+        {
+            if (debugCount == debugSamples.length)
+            {
+                debugSamples = Arrays.copyOf(debugSamples, debugCount * 2);
+                debugOffsets = Arrays.copyOf(debugOffsets, debugCount * 2);
+            }
+            debugSamples[debugCount] = idx;
+            debugOffsets[debugCount] = offset;
+            debugCount++;
+        }
+    }
+
+    /**
+     * Walks the sample records up front, only looking at their type (which
+     * decides their size), to split them into chunks of CHUNK_SAMPLES that
+     * can then be decoded independently.
+     *
+     * Returns the file offset just past the last complete record.
+     */
+    private long findChunks(TraceInput in, int num_samples, List<Chunk> chunks, LoadMonitor monitor) throws IOException
+    {
+        long last_report = System.currentTimeMillis();
+        Chunk chunk = null;
+
+        for (int k = 0; k < num_samples; k++)
+        {
+            if ((k & 0xffff) == 0)
+            {
+                if (monitor.isCancelled())
+                    break;
+
+                long now = System.currentTimeMillis();
+                if (now - last_report >= PROGRESS_INTERVAL)
+                {
+                    // scanning is the first half of the work, decoding the second
+                    monitor.loadProgress(in.position(), 2 * in.length(), new SampleStore(0));
+                    last_report = now;
+                }
+            }
 
-            int num_func_ids = readInteger(ch);
+            long remaining = in.length() - in.position();
+            if (remaining < SAMPLE_SIZE)
+                break;
 
-            // read the function-id mapping
-            for (int k = 0; k < num_func_ids; k++)
+            ByteBuffer bb = in.need(SAMPLE_SIZE);
+            int size = SAMPLE_SIZE;
+            if (bb.getInt(bb.position() + 12) == TYPE_DEBUGOUT)
+                size += DEBUGOUT_SIZE;
+            if (remaining < size)
+                break;
+
+            if (k % CHUNK_SAMPLES == 0)
             {
-                int func_id = readInteger(ch);
-                String func_name = readString(ch, 128).trim();
-                mapFuncIds.put(func_id, func_name);
-                lstFIDs.add(func_id);
-
-                // allocate colour (if not allocated already
-                double mix = 0.6;
-                double invmix = 1.0 - mix;
-                int r = (int)((mix + invmix * Math.random())*255);
-                int g = (int)((mix + invmix * Math.random())*255);
-                int b = (int)((mix + invmix * Math.random())*255);
-                Color clr = new Color(r, g, b);
-                lstColors.add(clr);
+                chunk = new Chunk();
+                chunk.offset = in.position();
+                chunk.first = k;
+                chunks.add(chunk);
             }
+            in.skip(size);
+            chunk.count++;
+            chunk.end = in.position();
+        }
 
-            int num_samples = readInteger(ch);
+        return in.position();
+    }
+
+    private int readChunk(FileChannel ch, Chunk chunk, SampleStore store, LoadMonitor monitor) throws IOException
+    {
+        TraceInput in;
+        if (chunk.block != null)
+            in = new TraceInput(ByteBuffer.wrap(TraceArchive.inflate(ch, chunk.block)), chunk.offset);
+        else
+            in = new TraceInput(ch, chunk.offset);
 
-            // read the samples
-            for (int k = 0; k < num_samples; k++)
+        for (int k = 0; k < chunk.count; k++)
+        {
+            if ((k & 0xffff) == 0 && monitor.isCancelled())
+                return k;
+
+            ByteBuffer bb = in.need(SAMPLE_SIZE);
+            int func_id = bb.getInt();
+            long time_stamp = bb.getLong();
+            int sample_type = bb.getInt();
+            int exit_point = bb.getInt();
+            store.put(chunk.first + k, func_id, time_stamp, sample_type, exit_point);
+
+            if (sample_type == TYPE_DEBUGOUT)
             {
-                SampleDetails s = new SampleDetails();
-                s.func_id = readInteger(ch);
-                s.time_stamp = readLong(ch);
-                s.sample_type = readInteger(ch);
-                s.exit_point = readInteger(ch);
+                chunk.addDebugOut(chunk.first + k, in.position());
+                in.skip(DEBUGOUT_SIZE);
+            }
+        }
+        return chunk.count;
+    }
 
-                if (s.sample_type == TYPE_DEBUGOUT)
-                    s.debug_out = readString(ch, 128).trim();
+    /**
+     * Decodes all the chunks on the worker pool, straight into their slots in
+     * 'store'. Since the chunks are consecutive runs of the file, and samples
+     * are written in time order, putting each chunk at its own offset is all
+     * the merging they need. The store grows as each leading run of chunks
+     * completes, and those samples are paired up (while the workers carry on
+     * with the chunks after them) before being reported to the monitor.
+     */
+    private void readChunks(final FileChannel ch, List<Chunk> chunks, final SampleStore store, final LoadMonitor monitor, long base, long total) throws IOException
+    {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (final Chunk chunk : chunks)
+        {
+            results.add(WorkerPool.get().submit(new Callable<Integer>()
+            {
+                public Integer call() throws IOException
+                {
+                    return readChunk(ch, chunk, store, monitor);
+                }
+            }));
+        }
 
-                lstSamples.add(s);
+        long last_report = System.currentTimeMillis();
+        try
+        {
+            for (int c = 0; c < chunks.size(); c++)
+            {
+                Chunk chunk = chunks.get(c);
+                if (results.get(c).get() < chunk.count)
+                    break;  // cancelled
+
+                for (int d = 0; d < chunk.debugCount; d++)
+                    store.addDebugOut(chunk.debugSamples[d], chunk.debugOffsets[d]);
+                store.count = chunk.first + chunk.count;
+                SampleStore snap = store.snapshot();
+                loadedIntervals.update(snap);
+
+                long now = System.currentTimeMillis();
+                if (now - last_report >= PROGRESS_INTERVAL)
+                {
+                    monitor.loadProgress(base + chunk.end, total, snap);
+                    last_report = now;
+                }
             }
-        } catch (Exception ex)
+        } catch (InterruptedException ex)
         {
-            Logger.getLogger(TraceViewerView.class.getName()).log(Level.SEVERE, null, ex);
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException)ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+        finally
+        {
+            for (Future<Integer> result : results)
+                result.cancel(false);
+        }
+    }
+
+    /**
+     * Decodes up to 'max' sample records from 'in' into 'store'. Stops early at
+     * the end of the file, or at a record that is only partly written.
+     *
+     * Returns the file offset just past the last complete record.
+     */
+    private long readSamples(TraceInput in, SampleStore store, long max) throws IOException
+    {
+        for (long k = 0; k < max; k++)
+        {
+            if (!in.has(SAMPLE_SIZE))
+                break;
+
+            ByteBuffer bb = in.need(SAMPLE_SIZE);
+            int pos = bb.position();
+            int sample_type = bb.getInt(pos + 12);
+            if (sample_type == TYPE_DEBUGOUT && !in.has(SAMPLE_SIZE + DEBUGOUT_SIZE))
+                break;
+
+            int func_id = bb.getInt();
+            long time_stamp = bb.getLong();
+            bb.getInt();    // sample_type, peeked at above
+            int exit_point = bb.getInt();
+            int idx = store.add(func_id, time_stamp, sample_type, exit_point);
+
+            // debug text is only decoded when shown (see DebugText)
+            if (sample_type == TYPE_DEBUGOUT)
+                store.addDebugOut(idx, debugText.capture(in));
         }
+
+        return in.position();
+    }
+
+    // where the next sample record will be, once the writer appends it
+    long tailOffset = 0;
+
+    // compressed traces can't be followed, as they can't be appended to
+    boolean followable = true;
+
+    // the samples load() read, which readAppended() adds to (only ever shown in snapshots)
+    private SampleStore tail = null;
+
+    /**
+     * Picks up any sample records appended to the trace file since it was
+     * loaded (or since the last call), for following a trace that is still
+     * being written, and pairs up their calls. Returns a snapshot of the
+     * samples for setSamples() to show, or null if there are no new ones.
+     *
+     * Memory is bounded by dropping the oldest samples once there are more
+     * than 'max' of them (if 'max' isn't 0). They are dropped in batches, so
+     * this doesn't copy the arrays for every few samples that arrive, and
+     * their calls are paired up again in a new table, which is only shown
+     * along with them.
+     *
+     * This runs on a background thread, so that none of it holds up the EDT,
+     * and only one call may run at a time.
+     */
+    public SampleStore readAppended(int max) throws IOException
+    {
+        if (!followable || tail == null)
+            return null;
+
+        FileInputStream f = new FileInputStream(new File(logfile));
+        try
+        {
+            FileChannel ch = f.getChannel();
+            if (ch.size() - tailOffset < SAMPLE_SIZE)
+                return null;
+
+            int before = tail.size();
+            tailOffset = readSamples(new TraceInput(ch, tailOffset), tail, Long.MAX_VALUE);
+            if (tail.size() == before)
+                return null;
+        }
+        finally
+        {
+            f.close();
+        }
+
+        if (max > 0 && tail.size() > max + max / 4)
+        {
+            tail = tail.dropFirst(tail.size() - max);
+            loadedIntervals = new IntervalTable();
+        }
+
+        SampleStore appended = tail.snapshot();
+        loadedIntervals.update(appended);
+        return appended;
+    }
+
+    // the word index of the debug text, which is empty until brought up to date (see TextIndex)
+    private TextIndex textIndex = null;
+
+    // synchronized, as the indexing and search tasks both ask for it, and must share the one index
+    public synchronized TextIndex getTextIndex()
+    {
+        if (textIndex == null)
+            textIndex = new TextIndex(debugText);
+        return textIndex;
+    }
+
+    public String getDebugOut(SampleStore store, int idx)
+    {
+        long offset = store.getDebugOffset(idx);
+        if (offset < 0 || debugText == null)
+            return null;
+        return debugText.get(offset);
+    }
+
+    // releases the trace file, which stays open for the debug text
+    public void close()
+    {
+        if (debugText != null)
+            debugText.close();
+    }
+
+    // loader throughput in MB/s
+    public double getLoadRate()
+    {
+        if (loadMillis == 0)
+            return 0;
+        return (loadBytes / (1024. * 1024.)) / (loadMillis / 1000.);
+    }
+
+    public String getLoadStats()
+    {
+        return String.format("%.1fMB in %dms (%.1fMB/s)", loadBytes / (1024. * 1024.), loadMillis, getLoadRate());
     }
 
     int fontheight = 14;
     int leftcolwidth = 0;
     int traceareawidth = 0;
 
-    final int TYPE_ENTER = 0;
-    final int TYPE_EXIT = 1;
-    final int TYPE_DEBUGOUT = 2;
+    static final int TYPE_ENTER = 0;
+    static final int TYPE_EXIT = 1;
+    static final int TYPE_DEBUGOUT = 2;
+
+    // on-disk record sizes (func_id, time_stamp, sample_type, exit_point)
+    static final int SAMPLE_SIZE = 4 + 8 + 4 + 4;
+    static final int DEBUGOUT_SIZE = 128;
 
     Font fntPlain = null;
     Font fntBold = null;
@@ -178,118 +745,179 @@ class TraceDetails
 
     public int getRowCount()
     {
-        return mapFuncIds.size();
+        return functions.size();
     }
     
+    // the row 'func_id' is shown in (or -1 if it isn't in the function table)
     public int adj(int func_id)
     {
-        return lstFIDs.indexOf(func_id);
+        return functions.rowOf(func_id);
     }
     
-    public void figureOutLeftColWidth(JLabel lblGraphic)
-    {
-        int width = lblGraphic.getWidth();
-        int height = lblGraphic.getHeight();
-        BufferedImage bim = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = (Graphics2D)bim.getGraphics();
-        fntPlain = new Font("Monospaced", Font.PLAIN, 14);
-        fntBold = new Font("Monospaced", Font.BOLD, 14);
-        g2d.setFont(fntBold);
-        FontMetrics fm = g2d.getFontMetrics();
+    // what the gutter was last measured for
+    Font gutterFont = null;
+    int gutterNames = -1;
+
+    public void figureOutLeftColWidth(JComponent timeline)
+    {
+        traceareawidth = timeline.getWidth() - leftcolwidth;
+        if (gutterFont != null && gutterNames == functions.size())
+            return;
+
+        if (fntPlain == null)
+        {
+            fntPlain = new Font("Monospaced", Font.PLAIN, 14);
+            fntBold = new Font("Monospaced", Font.BOLD, 14);
+        }
+        FontMetrics fm = timeline.getFontMetrics(fntBold);
         fontwidth = fm.stringWidth("x");
 
         rowheight = fontheight + 1;
 
         int max_name_len = 0;
-        for (Integer func_id : mapFuncIds.keySet())
+        for (int k = 0; k < functions.size(); k++)
         {
-            String func_name = mapFuncIds.get(func_id);
-            g2d.drawString(func_name, 0, (2 + adj(func_id)) * rowheight);
-
-            int len = func_name.length();
+            int len = functions.names[k].length();
             if (len > max_name_len)
                 max_name_len = len;
         }
 
         leftcolwidth = (max_name_len + 1) * fontwidth;
-        traceareawidth = width - leftcolwidth;
-    }
+        traceareawidth = timeline.getWidth() - leftcolwidth;
 
-    Color ltgray = new Color(220, 220, 220);
-    List<Color> lstColors = new ArrayList<Color>();
-    List<SampleDetails> lstVisibleSamples = new ArrayList<SampleDetails>();
-    int detboxsize = 6;
+        gutterFont = fntBold;
+        gutterNames = functions.size();
+        labelStrip = null;
+    }
 
-    public void Draw(JLabel lblGraphic, int zoom, long t_pos, long selstart, long selend, boolean showDetails)
+    // the rows of a window 'height' pixels high that are fully shown below the ruler
+    public int getVisibleRows(int height)
     {
-        int width = lblGraphic.getWidth();
-        int height = lblGraphic.getHeight();
+        return Math.max(1, (height - (fontheight + 2)) / rowheight);
+    }
 
-        lstVisibleSamples.clear();
+    // the row at 'y' on screen (which may not be a row in the trace)
+    public int rowAt(Viewport vp, int y)
+    {
+        return (int)Math.floor((y - 3 - fontheight) / (double)rowheight) + vp.top_row;
+    }
 
-        figureOutLeftColWidth(lblGraphic);
+    // the function names down the left, as last drawn, and the rows they show
+    BufferedImage labelStrip = null;
+    int labelStripSelrow = -1;
+    int labelStripTop = 0;
+
+    /**
+     * Returns the function names, drawn for a window 'height' pixels high
+     * from row 'top'. They are only drawn again when the window, the rows,
+     * the selected row or the scroll position change.
+     */
+    private BufferedImage getLabelStrip(int height, int top)
+    {
+        if (labelStrip != null && labelStrip.getHeight() == height && labelStripSelrow == selrow && labelStripTop == top)
+            return labelStrip;
 
-        double zm = 100. / (double) zoom;
+        labelStrip = new BufferedImage(Math.max(1, leftcolwidth), Math.max(1, height), BufferedImage.TYPE_INT_RGB);
+        labelStripSelrow = selrow;
+        labelStripTop = top;
 
-        BufferedImage bim = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = (Graphics2D)bim.getGraphics();
+        Graphics2D g2d = labelStrip.createGraphics();
         g2d.setFont(fntBold);
         g2d.setColor(Color.white);
-        g2d.fill(new Rectangle(0, 0, width, height));
-        g2d.setColor(Color.black);
+        g2d.fillRect(0, 0, leftcolwidth, height);
 
-        // it's time to read the data from the 'trace' object and draw it on screen...
-        for (Integer func_id : mapFuncIds.keySet())
+        // only the rows that fit are drawn, however many functions there are
+        for (int row = top; row < functions.size() && (1 + row - top) * rowheight < height; row++)
         {
-            String func_name = mapFuncIds.get(func_id);
-
-            if (adj(func_id) == selrow)
+            String func_name = functions.nameAt(row);
+            int line = row - top;
+            if (row == selrow)
             {
                 g2d.setColor(Color.yellow);
-                g2d.fill(new Rectangle(0, (1 + adj(func_id)) * rowheight + 1, leftcolwidth, rowheight));
+                g2d.fillRect(0, (1 + line) * rowheight + 1, leftcolwidth, rowheight);
                 g2d.setColor(Color.blue);
             }
-            g2d.drawString(func_name, 0, (2 + adj(func_id)) * rowheight - 2);
-            if (adj(func_id) == selrow)
+            else
                 g2d.setColor(Color.black);
+            g2d.drawString(func_name, 0, (2 + line) * rowheight - 2);
         }
 
-        int x = leftcolwidth;
+        g2d.dispose();
+        return labelStrip;
+    }
+
+    Color ltgray = new Color(220, 220, 220);
+    int detboxsize = 6;
+
+    // the cursor lines
+    static final Stroke DOTTED = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[] {4,4}, 0);
+
+    /**
+     * Draws the trace into the timeline's buffer. The selection and cursors
+     * aren't part of it; they go on top (see drawOverlay()).
+     */
+    public void Draw(TimelineCanvas timeline, Viewport vp, boolean showDetails)
+    {
+        int width = timeline.getWidth();
+        int height = timeline.getHeight();
+
+        figureOutLeftColWidth(timeline);
+
+        double zm = vp.scale();
         int y = 1 * fontheight + 2;
-        
+
+        // what changes from the last frame, which is all that gets painted
+        // again: everything if the view has moved, or else the names if they
+        // have changed, the old and new selected rows (name and all), and the
+        // tiles that have been drawn since (see drawTiles())
+        frameDirty.setBounds(0, 0, -1, -1);
+        if (width != frameWidth || height != frameHeight || leftcolwidth != frameLeftColWidth || showDetails != frameDetails
+                || vp.zoom != frameVp.zoom || vp.t_pos != frameVp.t_pos || vp.top_row != frameVp.top_row)
+            frameDirty.setBounds(0, 0, width, height);
+        else
+        {
+            if (labelStrip == null)
+                frameDirty.setBounds(0, 0, leftcolwidth, height);
+            if (selrow != frameSelrow)
+            {
+                frameDirty.add(new Rectangle(0, y + (frameSelrow - vp.top_row) * rowheight, width, rowheight));
+                frameDirty.add(new Rectangle(0, y + (selrow - vp.top_row) * rowheight, width, rowheight));
+            }
+        }
+
+        // drawn into the same buffer every time (see TimelineCanvas)
+        Graphics2D g2d = timeline.beginFrame();
+        g2d.setFont(fntBold);
+        g2d.setColor(Color.white);
+        g2d.fillRect(0, 0, width, height);
+        g2d.setColor(Color.black);
+
+        // the function names (only drawn again when they change)
+        g2d.drawImage(getLabelStrip(height, vp.top_row), 0, 0, null);
+
+        int x = leftcolwidth;
+
         g2d.drawLine(x, fontheight + 1, width, fontheight + 1);
         g2d.drawLine(x-1, 0, x-1, height);
 
         // draw measure units in top row
-        long zdur = (long)( (width-leftcolwidth) / zm) + t_pos;
-
-        long[] unit_options =
-            { 100, 200, 500,
-              1000, 2000, 5000,
-              10000, 20000, 50000,
-              100000, 200000, 500000,
-              1000000, 2000000, 5000000,
-              10000000, 20000000, 50000000,
-              100000000, 200000000, 500000000};
+        long zdur = vp.span(width-leftcolwidth) + vp.t_pos;
 
         long units = 0;
-        for (int k = 0; k < unit_options.length; k++)
+        for (int k = 0; k < UNIT_OPTIONS.length; k++)
         {
-            units = unit_options[k];
-            int tick_gap = (int)(units * zm);
+            units = UNIT_OPTIONS[k];
+            double tick_gap = units * zm;
             if (tick_gap >= 80)
                 break;
         }
 
-        Rectangle2D cliprect = new Rectangle2D.Float();
-        cliprect.setFrame(x, 0, width, height);
-        g2d.setClip(cliprect);
+        g2d.setClip(x, 0, width, height);
 
-        long unit_cnt = 0;
-        long tick = 0;
-        for (long k = 0; k < zdur; k += units)
+        // start from the last tick before the left edge, not from 0 (long captures)
+        for (long tick = Math.max(0, vp.t_pos / units); tick * units < zdur; tick++)
         {
-            // decide on us, ms or s units
+            // decide on us, ms, s, m, h or d units
             String s = "";
             if (units < 1000)
                 s = Long.toString(tick*units) + "us";
@@ -297,104 +925,101 @@ class TraceDetails
                 s = Long.toString(tick*units/1000) + "ms";
             else if (units < 60000000)
                 s = Long.toString(tick*units/1000000) + "s";
-            else
+            else if (units < 3600000000L)
                 s = Long.toString(tick*units/60000000) + "m";
+            else if (units < 86400000000L)
+                s = Long.toString(tick*units/3600000000L) + "h";
+            else
+                s = Long.toString(tick*units/86400000000L) + "d";
     
-            g2d.drawString(s, x + (int)((tick * units - t_pos) * zm), fontheight);
-            unit_cnt += units;
-            tick++;
+            g2d.drawString(s, timelineToScreenCoord(vp, tick * units), fontheight);
         }
 
         // draw selected row
-        if (selrow != -1)
+        if (selrow >= vp.top_row)
         {
             g2d.setColor(ltgray);
-            g2d.fill(new Rectangle(leftcolwidth, y + selrow*rowheight, traceareawidth, rowheight));
+            g2d.fillRect(leftcolwidth, y + (selrow - vp.top_row)*rowheight, traceareawidth, rowheight);
             g2d.setColor(Color.black);
         }
 
-        // group common sample-details together to draw timeline
-        long[] lstStarts = new long[mapFuncIds.size()];
-        int cnt = 0;
-        for (SampleDetails s : lstSamples)
-        {
-            if (s.func_id == -1)
-            {
-                System.out.println("cnt="+cnt+", time=" + s.time_stamp);
-            }
-
-            if (s.func_id >= mapFuncIds.size())
-            {
-                System.out.println("Invalid sample-point func_id!\ncnt="+cnt+", s.func_id=" + s.func_id);
-                continue;
-            }
-            if (s.sample_type == TYPE_ENTER)
-                lstStarts[s.func_id] = s.time_stamp;
-            if (s.sample_type == TYPE_EXIT)
-            {
-                long start = timelineToScreenCoord(zoom, t_pos, (int)lstStarts[s.func_id]);
-                long end = timelineToScreenCoord(zoom, t_pos, (int)s.time_stamp);
-                int time = (int)(end-start);
-
-                int ds = (int)start;
-                int dw = (int)time;
-                g2d.setColor(lstColors.get(s.func_id));
-                g2d.fill(new Rectangle(ds, y + adj(s.func_id)*rowheight, dw, fontheight));
-                g2d.setColor(Color.black);
-                g2d.drawRect(ds, y + adj(s.func_id)*rowheight, dw, fontheight);
-            }
-
-            cnt++;
-        }
+        // the calls and details boxes come from cached tiles (see TileCache),
+        // which only need drawing when they first come into view
+        drawTiles(g2d, vp, y, height, showDetails);
+
+        frameVp.zoom = vp.zoom;
+        frameVp.t_pos = vp.t_pos;
+        frameVp.top_row = vp.top_row;
+        frameWidth = width;
+        frameHeight = height;
+        frameLeftColWidth = leftcolwidth;
+        frameSelrow = selrow;
+        frameDetails = showDetails;
+
+        SwingUtilities.computeIntersection(0, 0, width, height, frameDirty);
+        timeline.endFrame(g2d, frameDirty);
+    }
 
-        // show details box
+    // the tick spacings the ruler can use, in microseconds
+    static final long[] UNIT_OPTIONS =
+        { 100, 200, 500,
+          1000, 2000, 5000,
+          10000, 20000, 50000,
+          100000, 200000, 500000,
+          1000000, 2000000, 5000000,
+          10000000, 20000000, 50000000,
+          100000000, 200000000, 500000000,
+          1800000000L, 3600000000L, 7200000000L,
+          21600000000L, 43200000000L, 86400000000L,
+          172800000000L, 604800000000L };
+
+    // the view the last frame was drawn for, which the overlay has to match
+    Viewport frameVp = new Viewport();
+
+    // the rest of what the last frame was drawn for, and what it changed
+    int frameWidth = -1;
+    int frameHeight = -1;
+    int frameLeftColWidth = -1;
+    int frameSelrow = -1;
+    boolean frameDetails = false;
+    Rectangle frameDirty = new Rectangle();
+
+    /**
+     * Draws the selection, the cursors and the debug text of the samples under
+     * the cursor, on top of the last frame drawn. They change far more often
+     * than the trace under them (on every mouse move while dragging out a
+     * selection), so they are drawn whenever the timeline is painted, rather
+     * than into the frame.
+     */
+    public void drawOverlay(Graphics2D g2d, int width, int height, long selstart, long selend)
+    {
+        Viewport vp = frameVp;
+        int y = 1 * fontheight + 2;
+        g2d.clipRect(leftcolwidth, y, width, height - y);
         g2d.setFont(fntPlain);
-        g2d.setColor(Color.blue);
-        for (SampleDetails s : lstSamples)
-        {
-            int detx = timelineToScreenCoord(zoom, t_pos, (int)s.time_stamp);
-            if (showDetails)
-            {
-                g2d.fill(new Rectangle(detx-detboxsize/2, y + adj(s.func_id)*rowheight+rowheight/2-detboxsize/2, detboxsize+1, detboxsize+1));
 
-                if (s.sample_type == TYPE_EXIT)
-                {
-                    // show the exit point number
-                    g2d.drawString(Integer.toString(s.exit_point), detx - fontwidth, y + adj(s.func_id)*rowheight+fontheight-1);
-                }
-            }
-
-            if (detx >= leftcolwidth && detx < width)
-                lstVisibleSamples.add(s);
-
-            if (detx > width)
+        // draw any debug info, for the samples under the cursor
+        for (int k = samples.lowerBound(selstart); k < samples.size() && selstart == selend; k++)
+        {
+            if (samples.getTimestamp(k) != selstart)
                 break;
-        }
 
-        // draw any debug info
-        for (SampleDetails s : lstSamples)
-        {
-            int detx = timelineToScreenCoord(zoom, t_pos, (int)s.time_stamp);
-            if (selstart == selend && selstart == s.time_stamp)
+            int detx = timelineToScreenCoord(vp, samples.getTimestamp(k));
+            String str = findHoverText(vp, selstart);
+            if (str != null)
             {
-                String str = findHoverText(zoom, t_pos, selstart);
-                if (str != null)
+                FontMetrics fm = g2d.getFontMetrics();
+                String[] split = str.split("[\\n]");
+                int row = adj(samples.getFuncId(k)) - vp.top_row;
+                for (int line = 0; line < split.length; line++)
                 {
-                    FontMetrics fm = g2d.getFontMetrics();
-                    String[] split = str.split("[\\n]");
-                    for (int k = 0; k < split.length; k++)
-                    {
-                        g2d.setColor(Color.yellow);
-                        Rectangle2D rect = fm.getStringBounds(split[k], g2d);
-                        g2d.fillRect(detx, y + adj(s.func_id)*rowheight+35+k*rowheight - rowheight + 2, (int)rect.getWidth(), (int)rect.getHeight());
-                        g2d.setColor(Color.black);
-                        g2d.drawString(split[k], detx, y + adj(s.func_id)*rowheight+35+k*rowheight);
-                    }
+                    g2d.setColor(Color.yellow);
+                    Rectangle2D rect = fm.getStringBounds(split[line], g2d);
+                    g2d.fillRect(detx, y + row*rowheight+35+line*rowheight - rowheight + 2, (int)rect.getWidth(), (int)rect.getHeight());
+                    g2d.setColor(Color.black);
+                    g2d.drawString(split[line], detx, y + row*rowheight+35+line*rowheight);
                 }
             }
-
-            if (detx > width)
-                break;
         }
 
         // show selection
@@ -408,147 +1033,612 @@ class TraceDetails
             selend = tmp;
         }
         
-        int selx = timelineToScreenCoord(zoom, t_pos, selstart);
-        int selw = timelineToScreenCoord(zoom, t_pos, selend) - selx;
-        System.out.println("selstart=" + Long.toString(selstart) + "selx = " + Integer.toString(selx) + ", selw = " + selw);
+        int selx = timelineToScreenCoord(vp, selstart);
+        int selw = timelineToScreenCoord(vp, selend) - selx;
         int sely = y;
-        int selh = rowheight * lstStarts.length + 1;
-        //System.out.println("selx="+selx+", sely="+sely+", selw="+selw+", selh="+selh);
         g2d.fill(new Rectangle(selx, sely, selw, height));
 
         // draw selstart and selend cursor positions
         g2d.setColor(Color.blue);
-        Stroke default_stroke = g2d.getStroke();
-        Stroke dotted = new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[] {4,4}, 0);
-        int selx2 = timelineToScreenCoord(zoom, t_pos, selend);
-        g2d.setStroke(dotted);
+        int selx2 = timelineToScreenCoord(vp, selend);
+        g2d.setStroke(DOTTED);
         g2d.drawLine(selx, y, selx, height);
         if (selend != selstart)
             g2d.drawLine(selx2, y, selx2, height);
-        g2d.setStroke(default_stroke);
+    }
 
-        ImageIcon icon = new ImageIcon(bim);
-        lblGraphic.setIcon(icon);
+    /**
+     * Returns the part of the timeline drawOverlay() draws on for this
+     * selection, for repainting just that when the selection changes.
+     */
+    public Rectangle getOverlayBounds(int width, int height, long selstart, long selend)
+    {
+        int x0 = timelineToScreenCoord(frameVp, Math.min(selstart, selend));
+        int x1 = timelineToScreenCoord(frameVp, Math.max(selstart, selend));
+
+        // the debug text goes off to the right of the cursor
+        if (selstart == selend)
+            x1 = width;
+
+        x0 = Math.max(x0 - 1, leftcolwidth);
+        x1 = Math.min(x1 + 1, width);
+        return new Rectangle(x0, 0, Math.max(0, x1 - x0), height);
     }
 
-    public long findPrevSampleNodePos(long selstart)
+    TileCache tiles = new TileCache();
+
+    // the tiles being drawn on the tile pool (see requestTile())
+    Map<TileCache.Key, Future<?>> pendingTiles = new HashMap<TileCache.Key, Future<?>>();
+
+    // tiles drawn since the last frame, which it has to paint
+    List<TileCache.Key> arrivedTiles = new ArrayList<TileCache.Key>();
+
+    // called on the EDT when tiles are ready, to draw the trace again
+    Runnable tilesDrawn = null;
+
+    private void drawTiles(Graphics2D g2d, Viewport vp, int y, int height, boolean showDetails)
     {
-        for (int k = lstSamples.size()-1; k >= 0; k--)
+        long origin = vp.originPixel();
+        long first_col = TileCache.columnOf(origin);
+        long last_col = TileCache.columnOf(origin + traceareawidth - 1);
+        int band_height = TileCache.TILE_ROWS * rowheight;
+
+        // only the bands of the rows scrolled into view (the first may start above the ruler)
+        int first_band = vp.top_row / TileCache.TILE_ROWS;
+        int top = y - (vp.top_row - first_band * TileCache.TILE_ROWS) * rowheight;
+        int last_band = first_band;
+        while ((last_band + 1) * TileCache.TILE_ROWS < functions.size() && top + (last_band + 1 - first_band) * band_height < height)
+            last_band++;
+        if (vp.top_row >= functions.size())
+            return;
+
+        // room for two frames, so the tiles of this one can't push each other out as they come in
+        long frame_bytes = 4L * (last_col - first_col + 1) * TileCache.TILE_WIDTH * (last_band - first_band + 1) * band_height;
+        tiles.maxBytes = Math.max(TileCache.MAX_BYTES, 2 * frame_bytes);
+
+        // tiles that have gone out of view since they were asked for aren't wanted any more
+        if (!pendingTiles.isEmpty())
         {
-            SampleDetails s = lstSamples.get(k);
+            Iterator<Map.Entry<TileCache.Key, Future<?>>> it = pendingTiles.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<TileCache.Key, Future<?>> pending = it.next();
+                TileCache.Key key = pending.getKey();
+                if (key.zoom != vp.zoom || key.details != showDetails || key.column < first_col || key.column > last_col
+                        || key.band < first_band || key.band > last_band)
+                {
+                    pending.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+        }
 
-            if (adj(s.func_id) == selrow && s.time_stamp < selstart)
-                return (int) s.time_stamp;
+        // the tiles that are cached; the rest are left blank until they have been drawn
+        g2d.clipRect(leftcolwidth, y, traceareawidth, height - y);
+        for (int band = first_band; band <= last_band; band++)
+        {
+            for (long col = first_col; col <= last_col; col++)
+            {
+                BufferedImage tile = tiles.get(vp.zoom, col, band, showDetails);
+                if (tile == null)
+                {
+                    requestTile(new TileCache.Key(vp.zoom, col, band, showDetails));
+                    continue;
+                }
+                int tile_x = leftcolwidth + (int)(col * TileCache.TILE_WIDTH - origin);
+                int tile_y = top + (band - first_band) * band_height;
+                g2d.drawImage(tile, tile_x, tile_y, null);
+            }
         }
 
-        return selstart;
+        // only the tiles drawn since the last frame show anything new
+        for (int k = 0; k < arrivedTiles.size(); k++)
+        {
+            TileCache.Key key = arrivedTiles.get(k);
+            if (key.zoom != vp.zoom || key.details != showDetails || key.column < first_col || key.column > last_col
+                    || key.band < first_band || key.band > last_band)
+                continue;
+            frameDirty.add(new Rectangle(leftcolwidth + (int)(key.column * TileCache.TILE_WIDTH - origin),
+                    top + (key.band - first_band) * band_height, TileCache.TILE_WIDTH, band_height));
+        }
+        arrivedTiles.clear();
     }
 
-    public long findNextSampleNodePos(long selstart)
+    /**
+     * Draws the tile for 'key' on the tile pool, unless it is already being
+     * drawn, so the EDT never waits for one. Once it is ready it is cached and
+     * the trace drawn again (see tilesDrawn). Tiles don't share any state
+     * while they are drawn, and the interval table is read under its lock, so
+     * they can all be drawn at once.
+     */
+    private void requestTile(final TileCache.Key key)
     {
-        for (int k = 0; k < lstSamples.size(); k++)
+        if (pendingTiles.containsKey(key))
+            return;
+
+        final IntervalTable table = intervals;
+        final int generation = tiles.generation;
+        pendingTiles.put(key, WorkerPool.tiles().submit(new Runnable()
         {
-            SampleDetails s = lstSamples.get(k);
+            public void run()
+            {
+                BufferedImage tile = null;
+                try
+                {
+                    tile = renderTile(key, table);
+                } catch (RuntimeException ex)
+                {
+                    Logger.getLogger(TraceDetails.class.getName()).log(Level.SEVERE, null, ex);
+                }
 
-            if (adj(s.func_id) == selrow && s.time_stamp > selstart)
-                return (int) s.time_stamp;
-        }
+                final BufferedImage drawn = tile;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        tileDrawn(key, drawn, generation);
+                    }
+                });
+            }
+        }));
+    }
 
-        return selstart;
+    // called on the EDT with each tile requestTile() has drawn (null if it failed)
+    private void tileDrawn(TileCache.Key key, BufferedImage tile, int generation)
+    {
+        // drawn from what the tiles showed before they were cleared
+        if (generation != tiles.generation)
+            return;
+
+        pendingTiles.remove(key);
+        if (tile == null)
+            return;
+
+        tiles.put(key, tile);
+        arrivedTiles.add(key);
+        if (tilesDrawn != null)
+            tilesDrawn.run();
     }
 
-    // this version just checks the cursor position for the current row against any sample points
-    public String findHoverText(int zoom, long t_pos, long selpos)
+    // drops every tile, and those still being drawn, once what they show has changed
+    private void clearTiles()
     {
-        if (selrow == -1)
-            return null;
+        tiles.clear();
+        for (Future<?> pending : pendingTiles.values())
+            pending.cancel(false);
+        pendingTiles.clear();
+        arrivedTiles.clear();
+    }
 
-        for (SampleDetails s : lstVisibleSamples)
+    /**
+     * Draws one tile: the calls of the rows in its band, between its first
+     * pixel column and the next tile's. Only what is drawn is opaque, so the
+     * selected row shows through from underneath.
+     */
+    private BufferedImage renderTile(TileCache.Key key, IntervalTable table)
+    {
+        final long px = key.column * TileCache.TILE_WIDTH;
+        Viewport vp = new Viewport()
         {
-            if (adj(s.func_id) != selrow)
-                continue;
+            @Override
+            public long originPixel()
+            {
+                return px;
+            }
+        };
+        vp.zoom = key.zoom;
+
+        int first_row = key.band * TileCache.TILE_ROWS;
+        int num_rows = Math.min(TileCache.TILE_ROWS, functions.size() - first_row);
+        int width = TileCache.TILE_WIDTH;
+
+        BufferedImage tile = new BufferedImage(width, num_rows * rowheight, BufferedImage.TYPE_INT_ARGB_PRE);
+        Rasterizer raster = new Rasterizer(tile);
+        double zm = vp.scale();
 
-            if (s.time_stamp == selpos)
+        // only what lies between these times is visited (the details boxes
+        // stick out a little either side of their sample)
+        long t_left = vp.toTimeline(-detboxsize, 0);
+        long t_right = vp.toTimeline(width + detboxsize, 0);
+
+        // draw the calls of each function in its row, nested calls inset inside their callers
+        table.lock.readLock().lock();
+        try
+        {
+            long last = table.getLastTimestamp();
+            RowSummary.Found found = new RowSummary.Found();
+            for (int r = first_row; r < first_row + num_rows; r++)
             {
-                switch (s.sample_type)
+                int func_id = functions.funcAt(r);
+                IntervalTable.Row row = table.getRow(func_id);
+                if (row.count == 0)
+                    continue;
+
+                int rgb = functions.colorAt(r).getRGB();
+                int rowy = (r - first_row) * rowheight;
+                int end = table.lowerBound(row, t_right + 1);
+
+                // too many calls to tell apart: summarise them, and only draw the long ones
+                long min_duration = 0;
+                if (end - table.lowerBound(row, t_left) > width / LOD_PIXELS_PER_CALL)
                 {
-                    case TYPE_DEBUGOUT:
-                        //String str = "<html>"+s.debug_out+"</html>";
-                        //str = str.replace("\n", "<br>");
-                        //return str;
-                        return s.debug_out;
+                    drawRowSummary(raster, vp, row, rgb, rowy, width, last);
+                    min_duration = (long)(LOD_LONG_CALL / zm);
+                }
 
-                    case TYPE_EXIT:
-                        return "exit_point: " + s.exit_point;
+                row.summary.find(end, t_left, min_duration, found);
+                for (int i = 0; i < found.count; i++)
+                    drawCall(raster, vp, table, row.ids[found.positions[i]], rgb, rowy, last);
+            }
 
-                    case TYPE_ENTER:
-                        return "enter_point";
+            if (key.details)
+                drawDetails(tile, raster, vp, table, first_row, num_rows, t_left, t_right);
+        }
+        finally
+        {
+            table.lock.readLock().unlock();
+        }
+
+        return tile;
+    }
+
+    /**
+     * Shows a details box on each sample of the rows in a tile, with the exit
+     * point number above each exit. Only the samples of those rows between
+     * 't_left' and 't_right' are looked at, and once they are closer together
+     * than a pixel just the first in each pixel column is shown.
+     */
+    private void drawDetails(BufferedImage tile, Rasterizer raster, Viewport vp, IntervalTable table,
+            int first_row, int num_rows, long t_left, long t_right)
+    {
+        // the exit point numbers still go through Graphics2D
+        Graphics2D g2d = (Graphics2D)tile.getGraphics();
+        g2d.setFont(fntPlain);
+        g2d.setColor(Color.blue);
+        int blue = Color.blue.getRGB();
+        SampleStore source = table.source;
+        for (int r = 0; r < num_rows; r++)
+        {
+            IntervalTable.Row row = table.getRow(functions.funcAt(first_row + r));
+            int i = table.eventLowerBound(row, t_left);
+            while (i < row.events)
+            {
+                int k = row.eventPos[i];
+                long t = source.getTimestamp(k);
+                if (t > t_right)
+                    break;
 
-                    default:
-                        return null;
+                int detx = vp.toScreen(t, 0);
+                raster.fillRect(detx-detboxsize/2, r*rowheight+rowheight/2-detboxsize/2, detboxsize+1, detboxsize+1, blue);
+
+                if (source.getType(k) == TYPE_EXIT)
+                {
+                    // show the exit point number
+                    g2d.drawString(Integer.toString(source.getExitPoint(k)), detx - fontwidth, r*rowheight+fontheight-1);
                 }
+
+                // the rest of this pixel column's samples would only cover this one's box
+                i = Math.max(i + 1, table.eventLowerBound(row, vp.toTimeline(detx + 1, 0)));
             }
         }
 
-        return null;
+        g2d.dispose();
     }
-    
-    public String findHoverText(int zoom, long t_pos, Point pt)
+
+    // rows with fewer pixels than this per visible call are summarised (see RowSummary)
+    static final int LOD_PIXELS_PER_CALL = 4;
+
+    // calls at least this many pixels wide are still drawn on their own when summarising
+    static final int LOD_LONG_CALL = 4;
+
+    static final int BLACK = Color.black.getRGB();
+
+    private void drawCall(Rasterizer raster, Viewport vp, IntervalTable table, int id, int rgb, int rowy, long last)
+    {
+        int inset = Math.min(table.depths[id] * 2, fontheight / 2 - 1);
+        int ds = vp.toScreen(table.starts[id], 0);
+        int dw = vp.toScreen(table.getEnd(id, last), 0) - ds;
+        raster.fillRect(ds, rowy + inset, dw, fontheight - 2*inset, rgb);
+        raster.drawRect(ds, rowy + inset, dw, fontheight - 2*inset, BLACK);
+    }
+
+    /**
+     * Draws one line per pixel column for a row that is zoomed out too far to
+     * show its calls: its height shows how much of that column's time the
+     * function was running for, and it gets darker the more calls start there.
+     */
+    private void drawRowSummary(Rasterizer raster, Viewport vp, IntervalTable.Row row, int rgb, int rowy, int width, long last)
+    {
+        int n = width;
+        long[] edges = new long[n + 1];
+        for (int c = 0; c <= n; c++)
+            edges[c] = vp.toTimeline(c, 0);
+        int[] calls = new int[n];
+        long[] busy = new long[n];
+        row.summary.summarise(edges, n, last, calls, busy);
+
+        for (int c = 0; c < n; c++)
+        {
+            if (busy[c] == 0 && calls[c] == 0)
+                continue;
+
+            long span = Math.max(1, edges[c + 1] - edges[c]);
+            int h = Math.max(2, (int)Math.round(fontheight * (double)busy[c] / span));
+            float dark = (float)Math.min(0.75, Math.log(1 + calls[c]) / 8);
+            int red = (int)(((rgb >> 16) & 0xff) * (1 - dark));
+            int green = (int)(((rgb >> 8) & 0xff) * (1 - dark));
+            int blue = (int)((rgb & 0xff) * (1 - dark));
+            raster.vline(c, rowy + fontheight - h, rowy + fontheight - 1, 0xff000000 | (red << 16) | (green << 8) | blue);
+        }
+    }
+
+    // swaps two rows round on screen
+    public void swapRows(int a, int b)
+    {
+        functions.swapRows(a, b);
+        clearTiles();
+        labelStrip = null;
+    }
+
+    /**
+     * Returns the time of the sample 'n' samples after 'selstart' (or before
+     * it, if 'n' is negative) on the selected row, or on any row if none is
+     * selected. Stops at the first or last sample, and returns 'selstart' if
+     * there are none that way.
+     */
+    public long stepSampleNodePos(long selstart, int n)
+    {
+        if (n == 0 || selrow >= functions.size())
+            return selstart;
+
+        if (selrow == -1)
+        {
+            // the samples are in time order, whichever row they are on
+            int first = n > 0 ? samples.lowerBound(selstart + 1) : samples.lowerBound(selstart) - 1;
+            if (first < 0 || first >= samples.size())
+                return selstart;
+
+            int k = Math.max(0, Math.min(samples.size() - 1, n > 0 ? first + n - 1 : first + n + 1));
+            return samples.getTimestamp(k);
+        }
+
+        // and so are each row's
+        intervals.lock.readLock().lock();
+        try
+        {
+            IntervalTable.Row row = intervals.getRow(functions.funcAt(selrow));
+            int first = n > 0 ? intervals.eventLowerBound(row, selstart + 1) : intervals.eventLowerBound(row, selstart) - 1;
+            if (first < 0 || first >= row.events)
+                return selstart;
+
+            int pos = Math.max(0, Math.min(row.events - 1, n > 0 ? first + n - 1 : first + n + 1));
+            return intervals.source.getTimestamp(row.eventPos[pos]);
+        }
+        finally
+        {
+            intervals.lock.readLock().unlock();
+        }
+    }
+
+    // this version just checks the cursor position for the current row against any sample points
+    public String findHoverText(Viewport vp, long selpos)
+    {
+        if (selrow < 0 || selrow >= functions.size())
+            return null;
+
+        intervals.lock.readLock().lock();
+        try
+        {
+            IntervalTable.Row row = intervals.getRow(functions.funcAt(selrow));
+            int pos = intervals.eventLowerBound(row, selpos);
+            if (pos < row.events && intervals.source.getTimestamp(row.eventPos[pos]) == selpos)
+                return describeSample(intervals.source, row.eventPos[pos]);
+
+            return null;
+        }
+        finally
+        {
+            intervals.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns what the tooltip should say at 'pt': the call under it, and the
+     * sample whose details box it is over (if they are shown). Only the row
+     * under the pointer is looked at, and only the part of it within a box's
+     * width of the pointer, so this takes the same time however many samples
+     * there are.
+     */
+    public String findHoverText(Viewport vp, Point pt, boolean showDetails)
     {
         int x = pt.x;
         int y = pt.y;
 
         int topy = 1 * fontheight + 2;
-        
-        // test bounding boxes on all visible points...
-        for (SampleDetails s : lstVisibleSamples)
-        {
-            int detx = timelineToScreenCoord(zoom, t_pos, (int)s.time_stamp);
-            int x1 = detx - detboxsize/2;
-            int y1 = topy + adj(s.func_id)*rowheight+rowheight/2-detboxsize/2;
-            int x2 = x1 + detboxsize;
-            int y2 = y1 + detboxsize;
-            
-            if ( (x1 < x && x < x2) && (y1 < y && y < y2))
+
+        // the boxes sit inside their rows, so only the row under the pointer can be hit
+        int r = rowAt(vp, y);
+        if (x < leftcolwidth || r < vp.top_row || r >= functions.size())
+            return null;
+
+        String str = "";
+        intervals.lock.readLock().lock();
+        try
+        {
+            IntervalTable.Row row = intervals.getRow(functions.funcAt(r));
+
+            // a box is hit if the pointer is strictly inside it, which puts its
+            // sample within these times
+            int y1 = topy + (r - vp.top_row)*rowheight+rowheight/2-detboxsize/2;
+            if (showDetails && y1 < y && y < y1 + detboxsize)
+            {
+                long t_lo = screenToTimelineCoord(vp, x - detboxsize + detboxsize/2 + 1);
+                long t_hi = screenToTimelineCoord(vp, x + detboxsize/2);
+                int pos = intervals.eventLowerBound(row, t_lo);
+                if (pos < row.events && intervals.source.getTimestamp(row.eventPos[pos]) < t_hi)
+                {
+                    String sample = describeSample(intervals.source, row.eventPos[pos]);
+                    if (sample != null)
+                        str = sample.replace("\n", "<br>") + "<br>";
+                }
+            }
+
+            // and the call drawn across the pointer's pixel
+            long from = screenToTimelineCoord(vp, x);
+            long to = screenToTimelineCoord(vp, x + 1) - 1;
+            int id = intervals.findCall(row, from, to, intervals.getLastTimestamp());
+            if (id >= 0)
+                str += describeCall(r, id);
+        }
+        finally
+        {
+            intervals.lock.readLock().unlock();
+        }
+
+        if (str.length() == 0)
+            return null;
+        return "<html>" + str + "</html>";
+    }
+
+    /**
+     * Describes what was running at the cursor, one line per call. At a
+     * single time 't0' that is every call still running there, in the order
+     * they started, with how deeply each is nested (0 for the outermost).
+     * They are all still open, so each is nested inside every call before it
+     * in the list. Over a selection from 't0' to 't1' it is each function
+     * that ran in it, with how many calls it made and how long it was busy,
+     * busiest first.
+     *
+     * Every row is looked up by binary search (see IntervalTable.findCall()
+     * and RowSummary.busyTime()), so this doesn't depend on how many calls
+     * the trace holds.
+     */
+    public List<String> findRunning(long t0, long t1)
+    {
+        intervals.lock.readLock().lock();
+        try
+        {
+            List<String> lines = new ArrayList<String>();
+            long last = intervals.getLastTimestamp();
+            if (t0 > t1)
+            {
+                long tmp = t0;
+                t0 = t1;
+                t1 = tmp;
+            }
+
+            if (t0 == t1)
+            {
+                // calls are numbered as they start, so sorting the ids puts them in start order
+                int count = 0;
+                int[] running = new int[16];
+                for (int r = 0; r < functions.size(); r++)
+                {
+                    IntervalTable.Row row = intervals.getRow(functions.funcAt(r));
+                    for (int id = intervals.findCall(row, t0, t0, last); id >= 0; id = intervals.parents[id])
+                    {
+                        if (count == running.length)
+                            running = Arrays.copyOf(running, count * 2);
+                        running[count++] = id;
+                    }
+                }
+                Arrays.sort(running, 0, count);
+
+                for (int depth = 0; depth < count; depth++)
+                {
+                    int id = running[depth];
+                    long start = intervals.starts[id];
+                    String name = functions.nameAt(adj(intervals.funcIds[id]));
+                    if (intervals.ends[id] < 0)
+                        lines.add(String.format("%s  depth %d  %dus - still running", name, depth, start));
+                    else
+                        lines.add(String.format("%s  depth %d  %dus - %dus (%dus)", name, depth, start, intervals.ends[id], intervals.ends[id] - start));
+                }
+                return lines;
+            }
+
+            final long[] busy = new long[functions.size()];
+            int[] calls = new int[functions.size()];
+            Integer[] order = new Integer[functions.size()];
+            for (int r = 0; r < functions.size(); r++)
             {
-                switch (s.sample_type)
+                IntervalTable.Row row = intervals.getRow(functions.funcAt(r));
+                order[r] = r;
+                if (row.count == 0)
+                    continue;
+                calls[r] = intervals.countCalls(row, t0, t1, last);
+                busy[r] = row.summary.busyTime(t0, t1, last);
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
                 {
-                    case TYPE_DEBUGOUT:
-                        String str = "<html>"+s.debug_out+"</html>";
-                        str = str.replace("\n", "<br>");
-                        return str;
-                        
-                    case TYPE_EXIT:
-                        return "exit_point: " + s.exit_point;
-
-                    case TYPE_ENTER:
-                        return "enter_point";
-                        
-                    default:
-                        return null;
+                    return busy[a] < busy[b] ? 1 : busy[a] > busy[b] ? -1 : a - b;
                 }
+            });
+
+            for (Integer r : order)
+            {
+                if (calls[r] > 0)
+                    lines.add(String.format("%s  %d calls, %dus (%.1f%%)", functions.nameAt(r), calls[r], busy[r], 100. * busy[r] / (t1 - t0)));
             }
+            return lines;
+        }
+        finally
+        {
+            intervals.lock.readLock().unlock();
         }
+    }
+
+    // what the hover text says about sample 'k' of 'store'
+    private String describeSample(SampleStore store, int k)
+    {
+        switch (store.getType(k))
+        {
+            case TYPE_DEBUGOUT:
+                return getDebugOut(store, k);
 
-        return null;
+            case TYPE_EXIT:
+                return "exit_point: " + store.getExitPoint(k);
+
+            case TYPE_ENTER:
+                return "enter_point";
+
+            default:
+                return null;
+        }
+    }
+
+    // what the hover text says about the call 'id', in 'row'
+    private String describeCall(int row, int id)
+    {
+        long start = intervals.starts[id];
+        long end = intervals.ends[id];
+        String str = functions.nameAt(row) + ": " + start + "us - ";
+        if (end < 0)
+            return str + "still running";
+        return str + end + "us (" + (end - start) + "us)";
     }
 
     public int selrow = -1;
 
-    public void handleMouseClick(Point pt)
+    public void handleMouseClick(Viewport vp, Point pt)
     {
-        int row = (pt.y - 3 - fontheight) / rowheight;
-        if (row >= 0 && row < mapFuncIds.size())
+        int row = rowAt(vp, pt.y);
+        if (row >= 0 && row < functions.size())
         {
             selrow = row;
         }
     }
 
-    public int timelineToScreenCoord(int zoom, long x_pos, long val)
+    public int timelineToScreenCoord(Viewport vp, long val)
+    {
+        return vp.toScreen(val, leftcolwidth);
+    }
+
+    public long screenToTimelineCoord(Viewport vp, long val)
     {
-        double zm = 100. / (double)zoom;
-        val = (long)((val - x_pos) * zm) + leftcolwidth;
-        return (int)val;
+        return vp.toTimeline(val, leftcolwidth);
     }
 
 }
@@ -0,0 +1,514 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The sidecar index cache (<trace>.tvidx) kept next to a trace file.
+ *
+ * It holds the decoded function table and the sample columns in the same
+ * layout as SampleStore, and the calls paired up from them (IntervalTable,
+ * with each row's RowSummary), so re-opening a trace is a memory-mapped bulk
+ * copy instead of a parse and a pass over every sample.
+ *
+ * It is keyed by the trace's size, modification time and a hash of its first
+ * and last megabyte; when any of those differ the index is ignored, and
+ * rewritten once the trace has been parsed again. An index whose counts don't
+ * fit in its length (it was cut short, or is corrupt) is ignored too. It is
+ * written to a temporary file first, which is only renamed over the index
+ * once complete, and deleted if it isn't.
+ *
+ * @author sgp1000
+ */
+class TraceIndex
+{
+    static final int MAGIC = 0x58495654;    // "TVIX"
+    static final int VERSION = 2;
+    static final String SUFFIX = ".tvidx";
+
+    // how much of each end of the trace goes into the content hash
+    static final int HASH_BYTES = 1024 * 1024;
+
+    // the function table, as it was in the trace file (before any row moves)
+    int[] funcIds;
+    String[] funcNames;
+    int[] funcColors;
+
+    long tailOffset;
+    SampleStore samples;
+
+    // the calls paired up from 'samples', or null if they weren't saved
+    IntervalTable intervals;
+
+    public static File sidecarFor(String logfile)
+    {
+        return new File(logfile + SUFFIX);
+    }
+
+    // where the index is written before being renamed into place
+    static File tempFor(File sidecar)
+    {
+        return new File(sidecar.getPath() + ".tmp");
+    }
+
+    // the indexes writeLater() is still writing, whose temporary files aren't stale
+    private static final Set<File> writing = new HashSet<File>();
+
+    /**
+     * Works out the key that ties an index to one version of the trace file:
+     * its size, modification time and a hash of its first and last megabyte.
+     */
+    static long[] keyFor(File trace) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        RandomAccessFile raf = new RandomAccessFile(trace, "r");
+        try
+        {
+            long len = raf.length();
+            byte[] b = new byte[(int)Math.min(HASH_BYTES, len)];
+            raf.readFully(b);
+            crc.update(b);
+            raf.seek(len - b.length);
+            raf.readFully(b);
+            crc.update(b);
+            return new long[] { len, trace.lastModified(), crc.getValue() };
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the index for 'logfile', or returns null if there isn't one, or
+     * if it is stale, or if it can't be read for any reason.
+     */
+    public static TraceIndex read(String logfile)
+    {
+        File sidecar = sidecarFor(logfile);
+
+        // left behind if the app exited while it was being written
+        synchronized (writing)
+        {
+            File tmp = tempFor(sidecar);
+            if (!writing.contains(sidecar) && tmp.exists() && !tmp.delete())
+                Logger.getLogger(TraceIndex.class.getName()).log(Level.WARNING, "Can't delete {0}", tmp);
+        }
+
+        if (!sidecar.exists())
+            return null;
+
+        try
+        {
+            FileInputStream f = new FileInputStream(sidecar);
+            try
+            {
+                TraceInput in = new TraceInput(f.getChannel());
+                ByteBuffer bb = in.need(8);
+                if (bb.getInt() != MAGIC || bb.getInt() != VERSION)
+                    return null;
+
+                long[] key = keyFor(new File(logfile));
+                bb = in.need(8 * 4);
+                if (bb.getLong() != key[0] || bb.getLong() != key[1] || bb.getLong() != key[2])
+                {
+                    Logger.getLogger(TraceIndex.class.getName()).log(Level.INFO, "Stale index {0}", sidecar);
+                    return null;
+                }
+
+                TraceIndex idx = new TraceIndex();
+                idx.tailOffset = bb.getLong();
+
+                int num_funcs = readCount(in, 12);
+                idx.funcIds = new int[num_funcs];
+                idx.funcNames = new String[num_funcs];
+                idx.funcColors = new int[num_funcs];
+                for (int k = 0; k < num_funcs; k++)
+                {
+                    bb = in.need(12);
+                    idx.funcIds[k] = bb.getInt();
+                    idx.funcColors[k] = bb.getInt();
+                    int name_len = bb.getInt();
+                    if (name_len < 0 || name_len > in.length() - in.position())
+                        throw new IOException("Bad function name length " + name_len);
+                    byte[] name = new byte[name_len];
+                    in.readBytes(name, name.length);
+                    idx.funcNames[k] = new String(name, "UTF-8");
+                }
+
+                int count = readCount(in, 8 + 4 + 1 + 4);
+                SampleStore store = new SampleStore(count);
+                in.readLongs(store.timestamps, count);
+                in.readInts(store.funcIds, count);
+                in.readBytes(store.types, count);
+                in.readInts(store.exitPoints, count);
+                store.count = count;
+
+                int debug_count = readCount(in, 4 + 8);
+                store.debugSamples = new int[Math.max(16, debug_count)];
+                store.debugOffsets = new long[Math.max(16, debug_count)];
+                in.readInts(store.debugSamples, debug_count);
+                in.readLongs(store.debugOffsets, debug_count);
+                store.debugCount = debug_count;
+
+                idx.samples = store;
+                if (in.need(4).getInt() != 0)
+                    idx.intervals = readIntervals(in, store);
+                return idx;
+            }
+            finally
+            {
+                f.close();
+            }
+        } catch (IOException ex)
+        {
+            Logger.getLogger(TraceIndex.class.getName()).log(Level.WARNING, "Can't read index " + sidecar, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a count of items 'bytes' long each, checking they'd fit in what
+     * is left of the index, so that a corrupt count can't ask for more memory
+     * than the index could possibly fill.
+     */
+    private static int readCount(TraceInput in, int bytes) throws IOException
+    {
+        int count = in.need(4).getInt();
+        if (count < 0 || (long)count * bytes > in.length() - in.position())
+            throw new IOException("Bad count " + count + " at offset " + in.position());
+        return count;
+    }
+
+    // reads the intervals paired up from 'store', as writeIntervals() wrote them
+    private static IntervalTable readIntervals(TraceInput in, SampleStore store) throws IOException
+    {
+        IntervalTable table = new IntervalTable();
+        int count = readCount(in, 8 + 8 + 4 + 4 + 4 + 4);
+        int cap = Math.max(16, count);
+        table.starts = new long[cap];
+        table.ends = new long[cap];
+        table.funcIds = new int[cap];
+        table.exitPoints = new int[cap];
+        table.depths = new int[cap];
+        table.parents = new int[cap];
+        in.readLongs(table.starts, count);
+        in.readLongs(table.ends, count);
+        in.readInts(table.funcIds, count);
+        in.readInts(table.exitPoints, count);
+        in.readInts(table.depths, count);
+        in.readInts(table.parents, count);
+        table.count = count;
+
+        int num_rows = readCount(in, 4 * 4);
+        table.rows = new IntervalTable.Row[Math.max(16, num_rows)];
+        for (int r = 0; r < num_rows; r++)
+        {
+            IntervalTable.Row row = new IntervalTable.Row();
+            int func_id = in.need(4).getInt();
+            row.count = readCount(in, 4);
+            row.ids = readInts(in, row.count);
+            row.open = readCount(in, 4);
+            row.stack = readInts(in, row.open);
+            row.events = readCount(in, 4);
+            row.eventPos = readInts(in, row.events);
+
+            RowSummary summary = new RowSummary(table, row);
+            summary.topCount = readCount(in, 4);
+            summary.top = readInts(in, summary.topCount);
+            summary.closedTop = readCount(in, 8);
+            summary.busy = new long[summary.closedTop + 16];
+            in.readLongs(summary.busy, summary.closedTop + 1);
+            readPyramid(in, summary.maxEnd);
+            readPyramid(in, summary.maxDuration);
+            row.summary = summary;
+
+            table.rowOf.put(func_id, r);
+            table.rows[r] = row;
+        }
+        table.numRows = num_rows;
+
+        table.source = store;
+        table.built = store.size();
+        return table;
+    }
+
+    private static int[] readInts(TraceInput in, int count) throws IOException
+    {
+        int[] a = new int[Math.max(16, count)];
+        in.readInts(a, count);
+        return a;
+    }
+
+    private static void readPyramid(TraceInput in, RowSummary.MaxPyramid pyramid) throws IOException
+    {
+        int num_levels = readCount(in, 4);
+        pyramid.levels = new long[num_levels][];
+        pyramid.counts = new int[num_levels];
+        for (int k = 0; k < num_levels; k++)
+        {
+            pyramid.counts[k] = readCount(in, 8);
+            pyramid.levels[k] = new long[Math.max(16, pyramid.counts[k])];
+            in.readLongs(pyramid.levels[k], pyramid.counts[k]);
+        }
+    }
+
+    // copies the function table saved in the index into 'functions' (which mustn't be shown yet)
+    public void fillFunctionTable(FunctionTable functions)
+    {
+        for (int k = 0; k < funcIds.length; k++)
+            functions.add(funcIds[k], funcNames[k], new Color(funcColors[k]));
+    }
+
+    /**
+     * Writes the index for 'logfile'. The samples must not change while this
+     * runs, which a snapshot of a fully loaded store guarantees.
+     */
+    public void write(String logfile) throws IOException
+    {
+        File sidecar = sidecarFor(logfile);
+        File tmp = tempFor(sidecar);
+        long[] key = keyFor(new File(logfile));
+
+        boolean written = false;
+        FileOutputStream f = new FileOutputStream(tmp);
+        try
+        {
+            Writer out = new Writer(f.getChannel());
+            out.need(8 * 5 + 4);
+            out.bb.putInt(MAGIC).putInt(VERSION);
+            out.bb.putLong(key[0]).putLong(key[1]).putLong(key[2]);
+            out.bb.putLong(tailOffset);
+
+            out.bb.putInt(funcIds.length);
+            for (int k = 0; k < funcIds.length; k++)
+            {
+                byte[] name = funcNames[k].getBytes("UTF-8");
+                out.need(12);
+                out.bb.putInt(funcIds[k]).putInt(funcColors[k]).putInt(name.length);
+                out.writeBytes(name, name.length);
+            }
+
+            out.need(4);
+            out.bb.putInt(samples.count);
+            out.writeLongs(samples.timestamps, samples.count);
+            out.writeInts(samples.funcIds, samples.count);
+            out.writeBytes(samples.types, samples.count);
+            out.writeInts(samples.exitPoints, samples.count);
+
+            out.need(4);
+            out.bb.putInt(samples.debugCount);
+            out.writeInts(samples.debugSamples, samples.debugCount);
+            out.writeLongs(samples.debugOffsets, samples.debugCount);
+
+            // the table may have moved on to samples appended since (when
+            // following the file), in which case the next load pairs them again
+            out.need(4);
+            if (intervals != null)
+            {
+                intervals.lock.readLock().lock();
+                try
+                {
+                    if (intervals.built == samples.count && intervals.source.dropped == samples.dropped)
+                    {
+                        out.bb.putInt(1);
+                        writeIntervals(out, intervals);
+                    }
+                    else
+                        out.bb.putInt(0);
+                }
+                finally
+                {
+                    intervals.lock.readLock().unlock();
+                }
+            }
+            else
+                out.bb.putInt(0);
+            out.flush();
+            written = true;
+        }
+        finally
+        {
+            f.close();
+            if (!written)
+                tmp.delete();
+        }
+
+        sidecar.delete();
+        if (!tmp.renameTo(sidecar))
+        {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + sidecar);
+        }
+    }
+
+    private static void writeIntervals(Writer out, IntervalTable table) throws IOException
+    {
+        out.need(4);
+        out.bb.putInt(table.count);
+        out.writeLongs(table.starts, table.count);
+        out.writeLongs(table.ends, table.count);
+        out.writeInts(table.funcIds, table.count);
+        out.writeInts(table.exitPoints, table.count);
+        out.writeInts(table.depths, table.count);
+        out.writeInts(table.parents, table.count);
+
+        out.need(4);
+        out.bb.putInt(table.numRows);
+        for (int r = 0; r < table.numRows; r++)
+        {
+            IntervalTable.Row row = table.rows[r];
+            // every row was made for a sample, so its first one says whose it is
+            out.need(8);
+            out.bb.putInt(table.source.getFuncId(row.eventPos[0]));
+            out.bb.putInt(row.count);
+            out.writeInts(row.ids, row.count);
+            out.need(4);
+            out.bb.putInt(row.open);
+            out.writeInts(row.stack, row.open);
+            out.need(4);
+            out.bb.putInt(row.events);
+            out.writeInts(row.eventPos, row.events);
+
+            RowSummary summary = row.summary;
+            out.need(4);
+            out.bb.putInt(summary.topCount);
+            out.writeInts(summary.top, summary.topCount);
+            out.need(4);
+            out.bb.putInt(summary.closedTop);
+            out.writeLongs(summary.busy, summary.closedTop + 1);
+            writePyramid(out, summary.maxEnd);
+            writePyramid(out, summary.maxDuration);
+        }
+    }
+
+    private static void writePyramid(Writer out, RowSummary.MaxPyramid pyramid) throws IOException
+    {
+        out.need(4);
+        out.bb.putInt(pyramid.levels.length);
+        for (int k = 0; k < pyramid.levels.length; k++)
+        {
+            out.need(4);
+            out.bb.putInt(pyramid.counts[k]);
+            out.writeLongs(pyramid.levels[k], pyramid.counts[k]);
+        }
+    }
+
+    /**
+     * Writes the index on the worker pool, so it never holds up the caller.
+     * If the index for 'logfile' is already being written, that one will do.
+     */
+    public void writeLater(final String logfile)
+    {
+        final File sidecar = sidecarFor(logfile);
+        synchronized (writing)
+        {
+            if (!writing.add(sidecar))
+                return;
+        }
+
+        WorkerPool.get().submit(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    long t0 = System.currentTimeMillis();
+                    write(logfile);
+                    Logger.getLogger(TraceIndex.class.getName()).log(Level.INFO, "Wrote index for {0} in {1}ms",
+                            new Object[] { logfile, System.currentTimeMillis() - t0 });
+                } catch (IOException ex)
+                {
+                    Logger.getLogger(TraceIndex.class.getName()).log(Level.WARNING, "Can't write index for " + logfile, ex);
+                }
+                finally
+                {
+                    synchronized (writing)
+                    {
+                        writing.remove(sidecar);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Buffered little-endian writer, the counterpart of TraceInput.
+     */
+    static class Writer
+    {
+        FileChannel ch;
+        ByteBuffer bb = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel ch)
+        {
+            this.ch = ch;
+        }
+
+        void need(int bytes) throws IOException
+        {
+            if (bb.remaining() < bytes)
+                flush();
+        }
+
+        void flush() throws IOException
+        {
+            bb.flip();
+            while (bb.hasRemaining())
+                ch.write(bb);
+            bb.clear();
+        }
+
+        void writeLongs(long[] src, int count) throws IOException
+        {
+            for (int done = 0; done < count; )
+            {
+                need(8);
+                int n = Math.min(count - done, bb.remaining() / 8);
+                bb.asLongBuffer().put(src, done, n);
+                bb.position(bb.position() + n * 8);
+                done += n;
+            }
+        }
+
+        void writeInts(int[] src, int count) throws IOException
+        {
+            for (int done = 0; done < count; )
+            {
+                need(4);
+                int n = Math.min(count - done, bb.remaining() / 4);
+                bb.asIntBuffer().put(src, done, n);
+                bb.position(bb.position() + n * 4);
+                done += n;
+            }
+        }
+
+        void writeBytes(byte[] src, int count) throws IOException
+        {
+            for (int done = 0; done < count; )
+            {
+                need(1);
+                int n = Math.min(count - done, bb.remaining());
+                bb.put(src, done, n);
+                done += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Sequential little-endian reader over a memory-mapped trace file.
+ *
+ * The file is mapped in large windows rather than all at once, so captures
+ * bigger than 2GB (the limit of a single MappedByteBuffer) still work. Callers
+ * ask for the number of bytes they are about to decode via need(), and then
+ * read them straight out of the returned buffer.
+ *
+ * It can also read from a plain stream (e.g. a gzip'd trace), through a heap
+ * buffer that is refilled as needed. The length isn't known until the end of
+ * the stream has been reached, so use has() rather than length() there.
+ *
+ * @author sgp1000
+ */
+class TraceInput
+{
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    FileChannel ch;
+    ReadableByteChannel stream;
+    long length;
+    ByteBuffer buf;
+    long bufbase;
+
+    public TraceInput(FileChannel ch) throws IOException
+    {
+        this(ch, 0);
+    }
+
+    public TraceInput(FileChannel ch, long pos) throws IOException
+    {
+        this.ch = ch;
+        length = ch.size();
+        map(pos);
+    }
+
+    public TraceInput(ReadableByteChannel stream)
+    {
+        this.stream = stream;
+        length = Long.MAX_VALUE;
+        buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.limit(0);
+    }
+
+    // reads from a buffer that already holds the bytes from offset 'base' on
+    public TraceInput(ByteBuffer bytes, long base)
+    {
+        buf = bytes.order(ByteOrder.LITTLE_ENDIAN);
+        bufbase = base - bytes.position();
+        length = bufbase + bytes.limit();
+    }
+
+    static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    private void map(long pos) throws IOException
+    {
+        long size = Math.min(WINDOW_SIZE, length - pos);
+        MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        buf = mapped;
+        bufbase = pos;
+    }
+
+    // tops the stream buffer up until it holds 'bytes', or the stream ends
+    private void fill(int bytes) throws IOException
+    {
+        bufbase += buf.position();
+        buf.compact();
+        while (buf.position() < bytes && length == Long.MAX_VALUE)
+        {
+            if (stream.read(buf) == -1)
+                length = bufbase + buf.position();
+        }
+        buf.flip();
+    }
+
+    /**
+     * Returns whether there are at least 'bytes' more bytes to read.
+     */
+    public boolean has(int bytes) throws IOException
+    {
+        if (buf.remaining() >= bytes)
+            return true;
+        if (stream != null)
+            fill(bytes);
+        return length - position() >= bytes;
+    }
+
+    /**
+     * Makes sure the next 'bytes' bytes of the file are available in the
+     * returned buffer, starting at its current position.
+     */
+    public ByteBuffer need(int bytes) throws IOException
+    {
+        if (buf.remaining() < bytes && stream != null)
+            fill(bytes);
+        if (buf.remaining() < bytes)
+        {
+            long pos = position();
+            if (length - pos < bytes)
+                throw new EOFException("Trace truncated at offset " + pos);
+            map(pos);
+        }
+        return buf;
+    }
+
+    public long position()
+    {
+        return bufbase + buf.position();
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public void skip(int bytes) throws IOException
+    {
+        need(bytes);
+        buf.position(buf.position() + bytes);
+    }
+
+    // bulk reads, for arrays that may span several mapped windows
+
+    public void readLongs(long[] dst, int count) throws IOException
+    {
+        for (int done = 0; done < count; )
+        {
+            int n = Math.min(count - done, need(8).remaining() / 8);
+            buf.asLongBuffer().get(dst, done, n);
+            buf.position(buf.position() + n * 8);
+            done += n;
+        }
+    }
+
+    public void readInts(int[] dst, int count) throws IOException
+    {
+        for (int done = 0; done < count; )
+        {
+            int n = Math.min(count - done, need(4).remaining() / 4);
+            buf.asIntBuffer().get(dst, done, n);
+            buf.position(buf.position() + n * 4);
+            done += n;
+        }
+    }
+
+    public void readBytes(byte[] dst, int count) throws IOException
+    {
+        for (int done = 0; done < count; )
+        {
+            int n = Math.min(count - done, need(1).remaining());
+            buf.get(dst, done, n);
+            done += n;
+        }
+    }
+
+    public String readString(int bytes) throws IOException
+    {
+        byte[] tmp = new byte[bytes];
+        need(bytes).get(tmp);
+        return new String(tmp).trim();
+    }
+}
@@ -4,10 +4,13 @@
 
 package traceviewer;
 
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.datatransfer.DataFlavor;
 import org.jdesktop.application.Action;
 import org.jdesktop.application.ResourceMap;
@@ -25,6 +28,8 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.Timer;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
@@ -32,6 +37,7 @@ import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import javax.swing.TransferHandler;
 
@@ -102,12 +108,17 @@ public class TraceViewerView extends FrameView {
         myInit();
     }
 
+    private void moveToTime(long t)
+    {
+        moveHorzScroll(vp.toScroll(t));
+    }
+
     private void moveHorzScroll(int pos)
     {
         int curpos = scrlHorz.getValue();
         scrlHorz.setValue(pos);
         if (scrlHorz.getValue() == curpos)  // no change?
-            drawTrace();
+            selectionChanged();
     }
 
     private void myInit()
@@ -147,6 +158,9 @@ public class TraceViewerView extends FrameView {
             @Override
             public boolean dispatchKeyEvent(KeyEvent e)
             {
+                if (e.getID() == KeyEvent.KEY_PRESSED && e.getKeyCode() == KeyEvent.VK_ESCAPE && loadTask != null)
+                    loadTask.cancel(true);
+
                 if (e.getID() == KeyEvent.KEY_PRESSED && trace != null)
                 {
                     // handle shortcuts for keyboard movement of drawn area
@@ -154,12 +168,12 @@ public class TraceViewerView extends FrameView {
                     {
                         selstart = 0;
                         selend = selstart;
-                        moveHorzScroll(0);
+                        moveHorzScroll(scrlHorz.getMinimum());
                     }
 
                     if (e.getKeyCode() == KeyEvent.VK_END)
                     {
-                        selstart = scrlHorz.getMaximum();
+                        selstart = trace.samples.getLastTimestamp();
                         selend = selstart;
                         moveHorzScroll(scrlHorz.getMaximum() - scrlHorz.getBlockIncrement());
                     }
@@ -173,6 +187,7 @@ public class TraceViewerView extends FrameView {
                         else if (trace.selrow > -1)
                         {
                             trace.selrow--;
+                            showRow(trace.selrow);
                             drawTrace();
                         }
                     }
@@ -186,6 +201,7 @@ public class TraceViewerView extends FrameView {
                         else if (trace.selrow < trace.getRowCount()-1)
                         {
                             trace.selrow++;
+                            showRow(trace.selrow);
                             drawTrace();
                         }
                     }
@@ -197,18 +213,7 @@ public class TraceViewerView extends FrameView {
                         else if (e.isAltDown())
                         {
                             // move cursor to previous sample node in row
-                            long prev_pos = trace.findPrevSampleNodePos(selend);
-                            long orig_pos = selend;
-                            if (e.isShiftDown())
-                            {
-                                selend = prev_pos;
-                            }
-                            else
-                            {
-                                selstart = prev_pos;
-                                selend = selstart;
-                            }
-                            moveHorzScroll(scrlHorz.getValue() + (int)(prev_pos - orig_pos));
+                            stepCursor(-1, e.isShiftDown());
                         }
                         else
                             moveHorzScroll(scrlHorz.getValue() - scrlHorz.getUnitIncrement());
@@ -220,44 +225,58 @@ public class TraceViewerView extends FrameView {
                             moveHorzScroll(scrlHorz.getValue() + scrlHorz.getBlockIncrement());
                         else if (e.isAltDown())
                         {
-                            // move cursor to previous sample node in row
-                            long next_pos = trace.findNextSampleNodePos(selend);
-                            long orig_pos = selend;
-                            if (e.isShiftDown())
-                            {
-                                selend = next_pos;
-                            }
-                            else
-                            {
-                                selstart = next_pos;
-                                selend = selstart;
-                            }
-                            moveHorzScroll(scrlHorz.getValue() + (int)(next_pos - orig_pos));
+                            // move cursor to next sample node in row
+                            stepCursor(1, e.isShiftDown());
                         }
                         else
                             moveHorzScroll(scrlHorz.getValue() + scrlHorz.getUnitIncrement());
                     }
+
+                    // jump the cursor several sample nodes at a time
+                    if (e.getKeyCode() == KeyEvent.VK_PAGE_UP && e.isAltDown())
+                        stepCursor(-JUMP_SAMPLES, e.isShiftDown());
+
+                    if (e.getKeyCode() == KeyEvent.VK_PAGE_DOWN && e.isAltDown())
+                        stepCursor(JUMP_SAMPLES, e.isShiftDown());
                 }
 
                 return false;
             }
         });
         
-        lblGraphic.setTransferHandler(new FileDropHandler(this));
+        timeline.setTransferHandler(new FileDropHandler(this));
+        timeline.setOverlay(new TimelineCanvas.Overlay() {
+            public void paintOverlay(Graphics2D g2d) {
+                if (trace != null)
+                    trace.drawOverlay(g2d, timeline.getWidth(), timeline.getHeight(), selstart, selend);
+            }
+        });
+
+        tailTimer = new Timer(TAIL_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                followTrace();
+            }
+        });
+
+        frameInterval = getFrameInterval();
+        redrawTimer = new Timer(frameInterval, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                drawFrame();
+            }
+        });
+        redrawTimer.setRepeats(false);
 
         ToolTipManager.sharedInstance().setInitialDelay(0);
     }
 
     public void moveCurrentRowDown()
     {
-        if (trace.selrow < trace.lstFIDs.size()-1)
+        if (trace.selrow < trace.getRowCount()-1)
         {
-            int val1 = trace.lstFIDs.get(trace.selrow);
-            int val2 = trace.lstFIDs.get(trace.selrow+1);
-            trace.lstFIDs.set(trace.selrow, val2);
-            trace.lstFIDs.set(trace.selrow+1, val1);
+            trace.swapRows(trace.selrow, trace.selrow+1);
         }
         trace.selrow++;
+        showRow(trace.selrow);
         drawTrace();
     }
 
@@ -265,15 +284,47 @@ public class TraceViewerView extends FrameView {
     {
         if (trace.selrow > 0)
         {
-            int val1 = trace.lstFIDs.get(trace.selrow-1);
-            int val2 = trace.lstFIDs.get(trace.selrow);
-            trace.lstFIDs.set(trace.selrow-1, val2);
-            trace.lstFIDs.set(trace.selrow, val1);
+            trace.swapRows(trace.selrow-1, trace.selrow);
         }
         trace.selrow--;
+        showRow(trace.selrow);
         drawTrace();
     }
 
+    // how many sample nodes Alt+PgUp/PgDn move the cursor by
+    static final int JUMP_SAMPLES = 10;
+
+    /**
+     * Moves the cursor 'n' sample nodes along the selected row (along all of
+     * them if none is selected), or just its end if 'extend' is set, and
+     * scrolls the trace along with it.
+     */
+    private void stepCursor(int n, boolean extend)
+    {
+        long new_pos = trace.stepSampleNodePos(selend, n);
+        long orig_pos = selend;
+        if (extend)
+        {
+            selend = new_pos;
+        }
+        else
+        {
+            selstart = new_pos;
+            selend = selstart;
+        }
+        moveToTime(vp.t_pos + (new_pos - orig_pos));
+    }
+
+    // scrolls the rows just enough to bring 'row' into view
+    private void showRow(int row)
+    {
+        int visible = trace.getVisibleRows(timeline.getHeight());
+        if (row < vp.top_row)
+            vp.top_row = Math.max(0, row);
+        else if (row >= vp.top_row + visible)
+            vp.top_row = row - visible + 1;
+    }
+
 
     final class FileDropHandler extends TransferHandler {
         TraceViewerView parent;
@@ -328,10 +379,10 @@ public class TraceViewerView extends FrameView {
         h = prefs.getInt("WindowHeight", -1);
         selstart = prefs.getLong("selstart", 0);
         selend = prefs.getLong("selend", 0);
-        zoom = prefs.getInt("zoom", 128);
-        if (zoom == 0)
-            zoom = 128;
-        t_pos = prefs.getLong("t_pos", 0);
+        vp.zoom = prefs.getLong("zoom", 128);
+        if (vp.zoom <= 0)
+            vp.zoom = 128;
+        vp.t_pos = prefs.getLong("t_pos", 0);
         String default_trace = prefs.get("DefaultTraceFile", null);
         if (default_trace == null || default_trace.length() == 0)
         {
@@ -350,17 +401,19 @@ public class TraceViewerView extends FrameView {
         if (fl.exists())
         {
             jTraceChooser.setSelectedFile(fl);
-            LoadTraceFile(jTraceChooser.getSelectedFile().getPath());
+            LoadTraceFile(jTraceChooser.getSelectedFile().getPath(), prefs.getInt("selrow", -1));
         }
         String tmpbrws = prefs.get("Browser", null);
         if (tmpbrws != null)
             strBrowser = tmpbrws;
-        if (trace != null)
-        {
-            trace.selrow = prefs.getInt("selrow", -1);
-            drawTrace();
-        }
         mnuShowDetails.setSelected(prefs.getBoolean("ShowDetails", false));
+        mnuShowRunning.setSelected(prefs.getBoolean("ShowRunning", false));
+        showRunningPanel();
+        mnuAutoScroll.setSelected(prefs.getBoolean("AutoScroll", true));
+        tailRetention = prefs.getInt("TailRetention", tailRetention);
+        mnuFollowFile.setSelected(prefs.getBoolean("FollowFile", false));
+        if (mnuFollowFile.isSelected())
+            tailTimer.start();
     }
 
     private void SaveWindowPrefs()
@@ -373,14 +426,18 @@ public class TraceViewerView extends FrameView {
         prefs.put("WindowHeight", Integer.toString(this.getFrame().getHeight()));
         prefs.putLong("selstart", selstart);
         prefs.putLong("selend", selend);
-        prefs.putInt("zoom", zoom);
-        prefs.putLong("t_pos", t_pos);
+        prefs.putLong("zoom", vp.zoom);
+        prefs.putLong("t_pos", vp.t_pos);
         if (jTraceChooser.getSelectedFile() != null)
             prefs.put("DefaultTraceFile", jTraceChooser.getSelectedFile().getAbsolutePath());
         prefs.put("Browser", strBrowser);
         if (trace != null)
             prefs.putInt("selrow", trace.selrow);
         prefs.putBoolean("ShowDetails", mnuShowDetails.isSelected());
+        prefs.putBoolean("ShowRunning", mnuShowRunning.isSelected());
+        prefs.putBoolean("FollowFile", mnuFollowFile.isSelected());
+        prefs.putBoolean("AutoScroll", mnuAutoScroll.isSelected());
+        prefs.putInt("TailRetention", tailRetention);
     }
 
     @Action
@@ -405,10 +462,14 @@ public class TraceViewerView extends FrameView {
         mainPanel = new javax.swing.JPanel();
         scrlVert = new javax.swing.JScrollBar();
         scrlHorz = new javax.swing.JScrollBar();
-        lblGraphic = new javax.swing.JLabel();
+        timeline = new traceviewer.TimelineCanvas();
+        runningScroll = new javax.swing.JScrollPane();
+        runningList = new javax.swing.JList();
         menuBar = new javax.swing.JMenuBar();
         javax.swing.JMenu fileMenu = new javax.swing.JMenu();
         mnuOpenTrace = new javax.swing.JMenuItem();
+        mnuStopLoading = new javax.swing.JMenuItem();
+        mnuSaveCompressed = new javax.swing.JMenuItem();
         javax.swing.JMenuItem exitMenuItem = new javax.swing.JMenuItem();
         optionsMenu = new javax.swing.JMenu();
         mnuZoomIn = new javax.swing.JMenuItem();
@@ -416,6 +477,17 @@ public class TraceViewerView extends FrameView {
         mnuResetZoom = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         mnuShowDetails = new javax.swing.JCheckBoxMenuItem();
+        mnuShowRunning = new javax.swing.JCheckBoxMenuItem();
+        jSeparator2 = new javax.swing.JPopupMenu.Separator();
+        mnuFollowFile = new javax.swing.JCheckBoxMenuItem();
+        mnuAutoScroll = new javax.swing.JCheckBoxMenuItem();
+        mnuTailRetention = new javax.swing.JMenuItem();
+        searchMenu = new javax.swing.JMenu();
+        mnuFind = new javax.swing.JMenuItem();
+        mnuFindNext = new javax.swing.JMenuItem();
+        mnuFindPrevious = new javax.swing.JMenuItem();
+        jSeparator3 = new javax.swing.JPopupMenu.Separator();
+        mnuFindRegex = new javax.swing.JCheckBoxMenuItem();
         javax.swing.JMenu helpMenu = new javax.swing.JMenu();
         mnuContents = new javax.swing.JMenuItem();
         mnuUpdateHistory = new javax.swing.JMenuItem();
@@ -424,18 +496,19 @@ public class TraceViewerView extends FrameView {
         statusPanel = new javax.swing.JPanel();
         javax.swing.JSeparator statusPanelSeparator = new javax.swing.JSeparator();
         statusMessageLabel = new javax.swing.JLabel();
+        frameTimeLabel = new javax.swing.JLabel();
         statusAnimationLabel = new javax.swing.JLabel();
         progressBar = new javax.swing.JProgressBar();
         jTraceChooser = new javax.swing.JFileChooser();
 
         mainPanel.setName("mainPanel"); // NOI18N
-        mainPanel.addComponentListener(new java.awt.event.ComponentAdapter() {
-            public void componentResized(java.awt.event.ComponentEvent evt) {
-                mainPanelComponentResized(evt);
-            }
-        });
 
         scrlVert.setName("scrlVert"); // NOI18N
+        scrlVert.addAdjustmentListener(new java.awt.event.AdjustmentListener() {
+            public void adjustmentValueChanged(java.awt.event.AdjustmentEvent evt) {
+                scrlVertAdjustmentValueChanged(evt);
+            }
+        });
 
         scrlHorz.setOrientation(javax.swing.JScrollBar.HORIZONTAL);
         scrlHorz.setName("scrlHorz"); // NOI18N
@@ -446,53 +519,69 @@ public class TraceViewerView extends FrameView {
         });
 
         org.jdesktop.application.ResourceMap resourceMap = org.jdesktop.application.Application.getInstance(traceviewer.TraceViewerApp.class).getContext().getResourceMap(TraceViewerView.class);
-        lblGraphic.setBackground(resourceMap.getColor("lblGraphic.background")); // NOI18N
-        lblGraphic.setText(resourceMap.getString("lblGraphic.text")); // NOI18N
-        lblGraphic.setName("lblGraphic"); // NOI18N
-        lblGraphic.setOpaque(true);
-        lblGraphic.addMouseListener(new java.awt.event.MouseAdapter() {
+        timeline.setBackground(resourceMap.getColor("timeline.background")); // NOI18N
+        timeline.setName("timeline"); // NOI18N
+        timeline.setOpaque(true);
+        timeline.addMouseListener(new java.awt.event.MouseAdapter() {
             public void mouseClicked(java.awt.event.MouseEvent evt) {
-                lblGraphicMouseClicked(evt);
+                timelineMouseClicked(evt);
             }
             public void mousePressed(java.awt.event.MouseEvent evt) {
-                lblGraphicMousePressed(evt);
+                timelineMousePressed(evt);
             }
             public void mouseReleased(java.awt.event.MouseEvent evt) {
-                lblGraphicMouseReleased(evt);
+                timelineMouseReleased(evt);
             }
         });
-        lblGraphic.addComponentListener(new java.awt.event.ComponentAdapter() {
+        timeline.addComponentListener(new java.awt.event.ComponentAdapter() {
             public void componentResized(java.awt.event.ComponentEvent evt) {
-                lblGraphicComponentResized(evt);
+                timelineComponentResized(evt);
             }
         });
-        lblGraphic.addMouseMotionListener(new java.awt.event.MouseMotionAdapter() {
+        timeline.addMouseMotionListener(new java.awt.event.MouseMotionAdapter() {
             public void mouseDragged(java.awt.event.MouseEvent evt) {
-                lblGraphicMouseDragged(evt);
+                timelineMouseDragged(evt);
             }
             public void mouseMoved(java.awt.event.MouseEvent evt) {
-                lblGraphicMouseMoved(evt);
+                timelineMouseMoved(evt);
             }
         });
+        timeline.addMouseWheelListener(new java.awt.event.MouseWheelListener() {
+            public void mouseWheelMoved(java.awt.event.MouseWheelEvent evt) {
+                timelineMouseWheelMoved(evt);
+            }
+        });
+
+        runningScroll.setName("runningScroll"); // NOI18N
+        runningScroll.setVisible(false);
+
+        runningList.setFont(resourceMap.getFont("runningList.font")); // NOI18N
+        runningList.setName("runningList"); // NOI18N
+        runningScroll.setViewportView(runningList);
 
         javax.swing.GroupLayout mainPanelLayout = new javax.swing.GroupLayout(mainPanel);
         mainPanel.setLayout(mainPanelLayout);
         mainPanelLayout.setHorizontalGroup(
             mainPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-            .addComponent(scrlHorz, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 558, Short.MAX_VALUE)
-            .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, mainPanelLayout.createSequentialGroup()
-                .addComponent(lblGraphic, javax.swing.GroupLayout.DEFAULT_SIZE, 541, Short.MAX_VALUE)
+            .addGroup(mainPanelLayout.createSequentialGroup()
+                .addGroup(mainPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(scrlHorz, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 558, Short.MAX_VALUE)
+                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, mainPanelLayout.createSequentialGroup()
+                        .addComponent(timeline, javax.swing.GroupLayout.DEFAULT_SIZE, 541, Short.MAX_VALUE)
+                        .addGap(0, 0, 0)
+                        .addComponent(scrlVert, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)))
                 .addGap(0, 0, 0)
-                .addComponent(scrlVert, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addComponent(runningScroll, javax.swing.GroupLayout.PREFERRED_SIZE, 250, javax.swing.GroupLayout.PREFERRED_SIZE))
         );
         mainPanelLayout.setVerticalGroup(
             mainPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, mainPanelLayout.createSequentialGroup()
                 .addGroup(mainPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
-                    .addComponent(lblGraphic, javax.swing.GroupLayout.DEFAULT_SIZE, 291, Short.MAX_VALUE)
+                    .addComponent(timeline, javax.swing.GroupLayout.DEFAULT_SIZE, 291, Short.MAX_VALUE)
                     .addComponent(scrlVert, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 291, Short.MAX_VALUE))
                 .addGap(0, 0, 0)
                 .addComponent(scrlHorz, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+            .addComponent(runningScroll, javax.swing.GroupLayout.DEFAULT_SIZE, 308, Short.MAX_VALUE)
         );
 
         menuBar.setName("menuBar"); // NOI18N
@@ -512,6 +601,27 @@ public class TraceViewerView extends FrameView {
         });
         fileMenu.add(mnuOpenTrace);
 
+        mnuStopLoading.setMnemonic('S');
+        mnuStopLoading.setText(resourceMap.getString("mnuStopLoading.text")); // NOI18N
+        mnuStopLoading.setEnabled(false);
+        mnuStopLoading.setName("mnuStopLoading"); // NOI18N
+        mnuStopLoading.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuStopLoadingActionPerformed(evt);
+            }
+        });
+        fileMenu.add(mnuStopLoading);
+
+        mnuSaveCompressed.setMnemonic('C');
+        mnuSaveCompressed.setText(resourceMap.getString("mnuSaveCompressed.text")); // NOI18N
+        mnuSaveCompressed.setName("mnuSaveCompressed"); // NOI18N
+        mnuSaveCompressed.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuSaveCompressedActionPerformed(evt);
+            }
+        });
+        fileMenu.add(mnuSaveCompressed);
+
         javax.swing.ActionMap actionMap = org.jdesktop.application.Application.getInstance(traceviewer.TraceViewerApp.class).getContext().getActionMap(TraceViewerView.class, this);
         exitMenuItem.setAction(actionMap.get("actionExit")); // NOI18N
         exitMenuItem.setText(resourceMap.getString("exitMenuItem.text")); // NOI18N
@@ -569,8 +679,95 @@ public class TraceViewerView extends FrameView {
         });
         optionsMenu.add(mnuShowDetails);
 
+        mnuShowRunning.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_R, java.awt.event.InputEvent.CTRL_MASK));
+        mnuShowRunning.setMnemonic('R');
+        mnuShowRunning.setText(resourceMap.getString("mnuShowRunning.text")); // NOI18N
+        mnuShowRunning.setName("mnuShowRunning"); // NOI18N
+        mnuShowRunning.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuShowRunningActionPerformed(evt);
+            }
+        });
+        optionsMenu.add(mnuShowRunning);
+
+        jSeparator2.setName("jSeparator2"); // NOI18N
+        optionsMenu.add(jSeparator2);
+
+        mnuFollowFile.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_T, java.awt.event.InputEvent.CTRL_MASK));
+        mnuFollowFile.setMnemonic('F');
+        mnuFollowFile.setText(resourceMap.getString("mnuFollowFile.text")); // NOI18N
+        mnuFollowFile.setName("mnuFollowFile"); // NOI18N
+        mnuFollowFile.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuFollowFileActionPerformed(evt);
+            }
+        });
+        optionsMenu.add(mnuFollowFile);
+
+        mnuAutoScroll.setMnemonic('A');
+        mnuAutoScroll.setText(resourceMap.getString("mnuAutoScroll.text")); // NOI18N
+        mnuAutoScroll.setName("mnuAutoScroll"); // NOI18N
+        optionsMenu.add(mnuAutoScroll);
+
+        mnuTailRetention.setMnemonic('R');
+        mnuTailRetention.setText(resourceMap.getString("mnuTailRetention.text")); // NOI18N
+        mnuTailRetention.setName("mnuTailRetention"); // NOI18N
+        mnuTailRetention.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuTailRetentionActionPerformed(evt);
+            }
+        });
+        optionsMenu.add(mnuTailRetention);
+
         menuBar.add(optionsMenu);
 
+        searchMenu.setMnemonic('S');
+        searchMenu.setText(resourceMap.getString("searchMenu.text")); // NOI18N
+        searchMenu.setName("searchMenu"); // NOI18N
+
+        mnuFind.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F, java.awt.event.InputEvent.CTRL_MASK));
+        mnuFind.setMnemonic('F');
+        mnuFind.setText(resourceMap.getString("mnuFind.text")); // NOI18N
+        mnuFind.setName("mnuFind"); // NOI18N
+        mnuFind.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuFindActionPerformed(evt);
+            }
+        });
+        searchMenu.add(mnuFind);
+
+        mnuFindNext.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F3, 0));
+        mnuFindNext.setMnemonic('N');
+        mnuFindNext.setText(resourceMap.getString("mnuFindNext.text")); // NOI18N
+        mnuFindNext.setName("mnuFindNext"); // NOI18N
+        mnuFindNext.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuFindNextActionPerformed(evt);
+            }
+        });
+        searchMenu.add(mnuFindNext);
+
+        mnuFindPrevious.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F3, java.awt.event.InputEvent.SHIFT_MASK));
+        mnuFindPrevious.setMnemonic('P');
+        mnuFindPrevious.setText(resourceMap.getString("mnuFindPrevious.text")); // NOI18N
+        mnuFindPrevious.setName("mnuFindPrevious"); // NOI18N
+        mnuFindPrevious.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuFindPreviousActionPerformed(evt);
+            }
+        });
+        searchMenu.add(mnuFindPrevious);
+
+        jSeparator3.setName("jSeparator3"); // NOI18N
+        searchMenu.add(jSeparator3);
+
+        mnuFindRegex.setMnemonic('R');
+        mnuFindRegex.setText(resourceMap.getString("mnuFindRegex.text")); // NOI18N
+        mnuFindRegex.setName("mnuFindRegex"); // NOI18N
+        searchMenu.add(mnuFindRegex);
+
+        menuBar.add(searchMenu);
+
         helpMenu.setMnemonic('H');
         helpMenu.setText(resourceMap.getString("helpMenu.text")); // NOI18N
         helpMenu.setName("helpMenu"); // NOI18N
@@ -615,6 +812,9 @@ public class TraceViewerView extends FrameView {
 
         statusMessageLabel.setName("statusMessageLabel"); // NOI18N
 
+        frameTimeLabel.setToolTipText(resourceMap.getString("frameTimeLabel.toolTipText")); // NOI18N
+        frameTimeLabel.setName("frameTimeLabel"); // NOI18N
+
         statusAnimationLabel.setHorizontalAlignment(javax.swing.SwingConstants.LEFT);
         statusAnimationLabel.setName("statusAnimationLabel"); // NOI18N
 
@@ -629,6 +829,8 @@ public class TraceViewerView extends FrameView {
                 .addContainerGap()
                 .addComponent(statusMessageLabel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, 388, Short.MAX_VALUE)
+                .addComponent(frameTimeLabel)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(progressBar, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(statusAnimationLabel)
@@ -641,6 +843,7 @@ public class TraceViewerView extends FrameView {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                 .addGroup(statusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(statusMessageLabel)
+                    .addComponent(frameTimeLabel)
                     .addComponent(statusAnimationLabel)
                     .addComponent(progressBar, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addGap(3, 3, 3))
@@ -655,45 +858,180 @@ public class TraceViewerView extends FrameView {
 
     TraceDetails trace = null;
 
-    private int findLargestTimestamp()
+    private long findLargestTimestamp()
     {
         if (trace == null)
             return 0;
 
-        if (trace.lstSamples.size() == 0)
-        {
-            JOptionPane.showMessageDialog(this.getFrame(), "No samples found", "Error", JOptionPane.ERROR_MESSAGE);
+        if (trace.samples.size() == 0)
             return 0;
-        }
-        int idx = trace.lstSamples.size() - 1;
-        return (int)trace.lstSamples.get(idx).time_stamp;
+
+        return trace.samples.getLastTimestamp();
     }
 
-    long t_pos = 0;
+    Viewport vp = new Viewport();
+
     private void setScrollBars()
     {
+        long max = findLargestTimestamp();
+        vp.setScrollRange(max);
         scrlHorz.setMinimum(0);
-        scrlHorz.setMaximum(findLargestTimestamp());
-        scrlHorz.setValue((int)t_pos);
+        scrlHorz.setMaximum(vp.toScroll(max));
+        scrlHorz.setValue(vp.toScroll(vp.t_pos));
+
+        int width = timeline.getWidth() - trace.leftcolwidth;
+        scrlHorz.setBlockIncrement(Math.max(1, vp.toScroll(vp.span(width))));
+        scrlHorz.setUnitIncrement(Math.max(1, scrlHorz.getBlockIncrement() / 30));
+    }
 
-        double zm = 100. / (double)zoom;
-        int width = lblGraphic.getWidth() - trace.leftcolwidth;
-        scrlHorz.setBlockIncrement( (int)(width / zm));
-        scrlHorz.setUnitIncrement(scrlHorz.getBlockIncrement() / 30);
+    // the vertical scrollbar goes over the rows, a page being as many as fit in the window
+    private void setVertScrollBar()
+    {
+        int rows = trace.getRowCount();
+        int visible = Math.min(rows, trace.getVisibleRows(timeline.getHeight()));
+        vp.top_row = Math.max(0, Math.min(vp.top_row, rows - visible));
+        scrlVert.setValues(vp.top_row, visible, 0, rows);
+        scrlVert.setBlockIncrement(Math.max(1, visible - 1));
+        scrlVert.setUnitIncrement(1);
     }
 
+    LoadTraceTask loadTask = null;
+
     private void LoadTraceFile(String file)
     {
+        LoadTraceFile(file, -1);
+    }
+
+    private void LoadTraceFile(String file, int selrow)
+    {
+        if (loadTask != null)
+            loadTask.cancel(true);
+        // (interrupting it would close the debug text's channel under it)
+        if (indexTask != null)
+            indexTask.cancel(false);
+        matches = null;
+
         File fl = new File(file);
         this.getFrame().setTitle("Trace Viewer - \"" + fl.getName() + "\"");
 
-        trace = new TraceDetails(file);
-        trace.figureOutLeftColWidth(lblGraphic);
+        loadTask = new LoadTraceTask(file, selrow);
+        mnuStopLoading.setEnabled(true);
+        getApplication().getContext().getTaskService().execute(loadTask);
+    }
 
-        disableRefreshFlag = true;
-        setScrollBars();
-        drawTrace();
-        disableRefreshFlag = false;
+    /**
+     * Reads a trace file in the background. The trace is shown as soon as its
+     * function table is in, and then redrawn as more of the samples arrive, so
+     * it can already be scrolled around while the rest is still loading.
+     */
+    class LoadTraceTask extends org.jdesktop.application.Task<SampleStore, SampleStore> implements TraceDetails.LoadMonitor
+    {
+        TraceDetails loading;
+        String name;
+
+        LoadTraceTask(String file, int selrow)
+        {
+            super(TraceViewerView.this.getApplication());
+            loading = new TraceDetails(file);
+            loading.selrow = selrow;
+            loading.viewStart = vp.t_pos;
+            loading.viewEnd = vp.t_pos + vp.span(timeline.getWidth());
+            loading.tilesDrawn = new Runnable()
+            {
+                public void run()
+                {
+                    if (trace == loading)
+                        drawTrace();
+                }
+            };
+            name = new File(file).getName();
+            setUserCanCancel(true);
+        }
+
+        @Override
+        protected SampleStore doInBackground() throws Exception
+        {
+            setMessage("Loading \"" + name + "\"...");
+            return loading.load(this);
+        }
+
+        public void loadProgress(long bytes, long total, SampleStore loaded)
+        {
+            setProgress((float)bytes, 0f, (float)total);
+            publish(loaded);
+        }
+
+        @Override
+        protected void process(List<SampleStore> chunks)
+        {
+            if (isCancelled())
+                return;
+
+            showLoaded(chunks.get(chunks.size() - 1));
+        }
+
+        private void showLoaded(SampleStore loaded)
+        {
+            loading.setSamples(loaded);
+            if (trace != loading)
+            {
+                if (trace != null)
+                    trace.close();
+                trace = loading;
+                trace.figureOutLeftColWidth(timeline);
+                vp.top_row = 0;
+                showRow(trace.selrow);
+            }
+
+            disableRefreshFlag = true;
+            setScrollBars();
+            drawTrace();
+            disableRefreshFlag = false;
+        }
+
+        @Override
+        protected void succeeded(SampleStore result)
+        {
+            showLoaded(result);
+            if (result.size() == 0)
+                JOptionPane.showMessageDialog(getFrame(), "No samples found", "Error", JOptionPane.ERROR_MESSAGE);
+            statusMessageLabel.setText("Loaded " + result.size() + " samples, " + loading.getLoadStats());
+            messageTimer.restart();
+
+            // get the debug text indexed before anyone searches it
+            indexTask = new IndexTextTask(loading, result);
+            getApplication().getContext().getTaskService().execute(indexTask);
+        }
+
+        @Override
+        protected void cancelled()
+        {
+            if (trace != loading)
+                loading.close();
+
+            statusMessageLabel.setText("Stopped loading \"" + name + "\"");
+            messageTimer.restart();
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            if (trace != loading)
+                loading.close();
+
+            Logger.getLogger(TraceViewerView.class.getName()).log(Level.SEVERE, null, cause);
+            JOptionPane.showMessageDialog(getFrame(), "Failed to load \"" + name + "\":\n" + cause, "Error", JOptionPane.ERROR_MESSAGE);
+        }
+
+        @Override
+        protected void finished()
+        {
+            if (loadTask == this)
+            {
+                loadTask = null;
+                mnuStopLoading.setEnabled(false);
+            }
+        }
     }
 
     private void mnuOpenTraceActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuOpenTraceActionPerformed
@@ -704,25 +1042,105 @@ public class TraceViewerView extends FrameView {
         }
     }//GEN-LAST:event_mnuOpenTraceActionPerformed
 
-    int zoom = 128;
-    
+    private void mnuStopLoadingActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuStopLoadingActionPerformed
+    {//GEN-HEADEREND:event_mnuStopLoadingActionPerformed
+        if (loadTask != null)
+            loadTask.cancel(true);
+    }//GEN-LAST:event_mnuStopLoadingActionPerformed
+
+    private void mnuSaveCompressedActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuSaveCompressedActionPerformed
+    {//GEN-HEADEREND:event_mnuSaveCompressedActionPerformed
+        if (trace == null)
+            return;
+
+        try
+        {
+            if (TraceArchive.formatOf(trace.logfile) != TraceArchive.FORMAT_RAW)
+            {
+                JOptionPane.showMessageDialog(getFrame(), "This trace is already compressed", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        } catch (IOException ex)
+        {
+            Logger.getLogger(TraceViewerView.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(trace.logfile + ".tvz"));
+        if (chooser.showSaveDialog(this.getFrame()) == JFileChooser.APPROVE_OPTION)
+        {
+            getApplication().getContext().getTaskService().execute(
+                    new CompressTraceTask(trace.logfile, chooser.getSelectedFile().getPath()));
+        }
+    }//GEN-LAST:event_mnuSaveCompressedActionPerformed
+
+    /**
+     * Writes a block-compressed copy of a trace (see TraceArchive) in the background.
+     */
+    class CompressTraceTask extends org.jdesktop.application.Task<Boolean, Void> implements TraceArchive.WriteMonitor
+    {
+        String src;
+        String dst;
+
+        CompressTraceTask(String src, String dst)
+        {
+            super(TraceViewerView.this.getApplication());
+            this.src = src;
+            this.dst = dst;
+            setUserCanCancel(true);
+        }
+
+        @Override
+        protected Boolean doInBackground() throws Exception
+        {
+            setMessage("Compressing \"" + new File(src).getName() + "\"...");
+            return TraceArchive.write(src, dst, this);
+        }
+
+        public void writeProgress(long bytes, long total)
+        {
+            setProgress((float)bytes, 0f, (float)total);
+        }
+
+        @Override
+        protected void succeeded(Boolean done)
+        {
+            if (!done)
+                return;
+
+            File in = new File(src);
+            File out = new File(dst);
+            statusMessageLabel.setText(String.format("Saved \"%s\" (%.1f%% of the original size)",
+                    out.getName(), 100. * out.length() / Math.max(1, in.length())));
+            messageTimer.restart();
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            Logger.getLogger(TraceViewerView.class.getName()).log(Level.SEVERE, null, cause);
+            JOptionPane.showMessageDialog(getFrame(), "Failed to save \"" + dst + "\":\n" + cause, "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void mnuZoomInActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuZoomInActionPerformed
     {//GEN-HEADEREND:event_mnuZoomInActionPerformed
         if (trace == null)
             return;
 
         // figure out new t_pos to keep everything centred on the selection
-        t_pos = (selstart+selend) / 2;
+        vp.t_pos = (selstart+selend) / 2;
 
-        if (zoom == 2)
+        if (vp.zoom == 2)
             return;
-        zoom /= 2;
+        vp.zoom /= 2;
 
         // now move it back to centre after the zoom is applied
-        t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
+        vp.t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
 
-        if (t_pos < 0)
-            t_pos = 0;
+        if (vp.t_pos < 0)
+            vp.t_pos = 0;
 
         disableRefreshFlag = true;
         setScrollBars();
@@ -736,15 +1154,16 @@ public class TraceViewerView extends FrameView {
             return;
 
         // figure out new t_pos to keep everything centred
-        t_pos = (selstart+selend) / 2;
+        vp.t_pos = (selstart+selend) / 2;
 
-        zoom *= 2;
+        if (vp.zoom < Viewport.MAX_ZOOM)
+            vp.zoom *= 2;
 
         // now move it back to centre after the zoom is applied
-        t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
+        vp.t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
 
-        if (t_pos < 0)
-            t_pos = 0;
+        if (vp.t_pos < 0)
+            vp.t_pos = 0;
 
         disableRefreshFlag = true;
         setScrollBars();
@@ -758,53 +1177,148 @@ public class TraceViewerView extends FrameView {
     {//GEN-HEADEREND:event_scrlHorzAdjustmentValueChanged
         if (/*!evt.getValueIsAdjusting() &&*/ trace != null && !disableRefreshFlag)
         {
-            t_pos = scrlHorz.getValue();
+            vp.t_pos = vp.fromScroll(scrlHorz.getValue());
             drawTrace();
         }
     }//GEN-LAST:event_scrlHorzAdjustmentValueChanged
 
+    private void scrlVertAdjustmentValueChanged(java.awt.event.AdjustmentEvent evt)//GEN-FIRST:event_scrlVertAdjustmentValueChanged
+    {//GEN-HEADEREND:event_scrlVertAdjustmentValueChanged
+        if (trace != null && !disableRefreshFlag)
+        {
+            vp.top_row = scrlVert.getValue();
+            drawTrace();
+        }
+    }//GEN-LAST:event_scrlVertAdjustmentValueChanged
+
+    private void timelineMouseWheelMoved(java.awt.event.MouseWheelEvent evt)//GEN-FIRST:event_timelineMouseWheelMoved
+    {//GEN-HEADEREND:event_timelineMouseWheelMoved
+        // the wheel scrolls the rows, as it would in a list
+        if (trace != null)
+            scrlVert.setValue(scrlVert.getValue() + evt.getUnitsToScroll());
+    }//GEN-LAST:event_timelineMouseWheelMoved
+
     long selstart = 0;
     long selend = 0;
     boolean selectionInProgress = false;
     
-    private void lblGraphicMousePressed(java.awt.event.MouseEvent evt)//GEN-FIRST:event_lblGraphicMousePressed
-    {//GEN-HEADEREND:event_lblGraphicMousePressed
+    private void timelineMousePressed(java.awt.event.MouseEvent evt)//GEN-FIRST:event_timelineMousePressed
+    {//GEN-HEADEREND:event_timelineMousePressed
         selstart = screenToTimelineCoord(evt.getX());
         selend = selstart;
         selectionInProgress = true;
         statusMessageLabel.setText("");
-        drawTrace();
-    }//GEN-LAST:event_lblGraphicMousePressed
+        selectionChanged();
+    }//GEN-LAST:event_timelineMousePressed
 
-    private int screenToTimelineCoord(long val)
+    private long screenToTimelineCoord(long val)
     {
-        double zm = 100. / (double)zoom;
-        val = (long)( (val-trace.leftcolwidth) / zm) + t_pos;
-        return (int)val;
+        return trace.screenToTimelineCoord(vp, val);
     }
 
-    private void lblGraphicMouseReleased(java.awt.event.MouseEvent evt)//GEN-FIRST:event_lblGraphicMouseReleased
-    {//GEN-HEADEREND:event_lblGraphicMouseReleased
+    private void timelineMouseReleased(java.awt.event.MouseEvent evt)//GEN-FIRST:event_timelineMouseReleased
+    {//GEN-HEADEREND:event_timelineMouseReleased
         selend = screenToTimelineCoord(evt.getX());
         
         selectionInProgress = false;
-        drawTrace();
-    }//GEN-LAST:event_lblGraphicMouseReleased
+        selectionChanged();
+    }//GEN-LAST:event_timelineMouseReleased
 
-    private void lblGraphicMouseDragged(java.awt.event.MouseEvent evt)//GEN-FIRST:event_lblGraphicMouseDragged
-    {//GEN-HEADEREND:event_lblGraphicMouseDragged
+    private void timelineMouseDragged(java.awt.event.MouseEvent evt)//GEN-FIRST:event_timelineMouseDragged
+    {//GEN-HEADEREND:event_timelineMouseDragged
         if (selectionInProgress)
         {
             selend = screenToTimelineCoord(evt.getX());
 
-            drawTrace();
+            selectionChanged();
         }
-    }//GEN-LAST:event_lblGraphicMouseDragged
-
+    }//GEN-LAST:event_timelineMouseDragged
+
+    Timer redrawTimer;
+    int frameInterval;              // ms between frames, at most
+    boolean redrawPending = false;
+    long redrawRequested = 0;       // System.nanoTime() of the first request since the last frame
+    long lastFrame = 0;             // when the last frame was finished
+
+    /**
+     * Asks for the trace to be redrawn. Requests are coalesced into the next
+     * frame, which is drawn once at least frameInterval has passed since the
+     * last one, and shows whatever the view is like by then. Input arriving
+     * faster than frames can be drawn (key repeat, dragging) just moves the
+     * view along rather than queueing up frames behind it.
+     */
     private void drawTrace()
     {
-        trace.Draw(lblGraphic, zoom, t_pos, selstart, selend, mnuShowDetails.isSelected());
+        trace.figureOutLeftColWidth(timeline);
+
+        // the rows that fit change with the window and the font
+        boolean refresh_disabled = disableRefreshFlag;
+        disableRefreshFlag = true;
+        setVertScrollBar();
+        disableRefreshFlag = refresh_disabled;
+
+        showDuration();
+        if (redrawPending)
+            return;
+
+        redrawPending = true;
+        redrawRequested = System.nanoTime();
+        long since = (redrawRequested - lastFrame) / 1000000;
+        redrawTimer.setInitialDelay((int)Math.max(0, frameInterval - since));
+        redrawTimer.restart();
+    }
+
+    private void drawFrame()
+    {
+        redrawPending = false;
+        if (trace == null)
+            return;
+
+        long start = System.nanoTime();
+        trace.Draw(timeline, vp, mnuShowDetails.isSelected());
+        overlayBounds = null;
+        updateRunning();
+        lastFrame = System.nanoTime();
+
+        // how long the frame took to draw, and to show after it was asked for
+        frameTimeLabel.setText(String.format("%dms / %dms", (lastFrame - start) / 1000000, (lastFrame - redrawRequested) / 1000000));
+    }
+
+    // what the overlay last drew on, if it was painted since the last frame
+    Rectangle overlayBounds = null;
+
+    /**
+     * Shows a change to the selection or cursor. They are drawn over the
+     * frame as it is painted (see TraceDetails.drawOverlay()), so only the
+     * part they were and are now drawn on needs painting again.
+     */
+    private void selectionChanged()
+    {
         showDuration();
+        if (trace == null)
+            return;
+
+        updateRunning();
+
+        Rectangle bounds = trace.getOverlayBounds(timeline.getWidth(), timeline.getHeight(), selstart, selend);
+        if (overlayBounds == null)
+            timeline.repaint();
+        else
+            timeline.repaint(bounds.union(overlayBounds));
+        overlayBounds = bounds;
+    }
+
+    // the screen's refresh interval in ms, if it says (60Hz if not)
+    private static int getFrameInterval()
+    {
+        int rate = 60;
+        if (!GraphicsEnvironment.isHeadless())
+        {
+            int screen_rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (screen_rate > 0)
+                rate = screen_rate;
+        }
+        return Math.max(1, 1000 / rate);
     }
 
     private void showDuration()
@@ -844,13 +1358,294 @@ public class TraceViewerView extends FrameView {
         statusMessageLabel.setText(prefix + sdur + unit_name);
     }
 
-    private void lblGraphicComponentResized(java.awt.event.ComponentEvent evt)//GEN-FIRST:event_lblGraphicComponentResized
-    {//GEN-HEADEREND:event_lblGraphicComponentResized
+    private void timelineComponentResized(java.awt.event.ComponentEvent evt)//GEN-FIRST:event_timelineComponentResized
+    {//GEN-HEADEREND:event_timelineComponentResized
         if (!disableRefreshFlag && trace != null)
         {
             drawTrace();
         }
-    }//GEN-LAST:event_lblGraphicComponentResized
+    }//GEN-LAST:event_timelineComponentResized
+
+    // how often (in ms) a followed trace file is checked for new samples
+    static final int TAIL_INTERVAL = 500;
+
+    Timer tailTimer;
+    int tailRetention = 20000000;
+
+    // set while new samples are read in the background (see followTrace())
+    boolean readingAppended = false;
+
+    /**
+     * Picks up whatever has been appended to the trace. The samples are read
+     * and paired up on the worker pool, and then shown on the EDT.
+     */
+    private void followTrace()
+    {
+        if (trace == null || loadTask != null || readingAppended)
+            return;
+
+        final TraceDetails following = trace;
+        final int retention = tailRetention;
+        readingAppended = true;
+        WorkerPool.get().submit(new Runnable()
+        {
+            public void run()
+            {
+                SampleStore appended = null;
+                try
+                {
+                    appended = following.readAppended(retention);
+                } catch (IOException ex)
+                {
+                    Logger.getLogger(TraceViewerView.class.getName()).log(Level.WARNING, null, ex);
+                }
+                finally
+                {
+                    final SampleStore result = appended;
+                    SwingUtilities.invokeLater(new Runnable()
+                    {
+                        public void run()
+                        {
+                            readingAppended = false;
+                            showAppended(following, result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void showAppended(TraceDetails following, SampleStore appended)
+    {
+        if (appended == null || trace != following)
+            return;
+
+        trace.setSamples(appended);
+
+        disableRefreshFlag = true;
+        setScrollBars();
+        if (mnuAutoScroll.isSelected())
+        {
+            vp.t_pos = Math.max(0, trace.samples.getLastTimestamp() - vp.span(trace.traceareawidth));
+            scrlHorz.setValue(vp.toScroll(vp.t_pos));
+        }
+        disableRefreshFlag = false;
+        drawTrace();
+    }
+
+    private void mnuFollowFileActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuFollowFileActionPerformed
+    {//GEN-HEADEREND:event_mnuFollowFileActionPerformed
+        if (mnuFollowFile.isSelected())
+            tailTimer.start();
+        else
+            tailTimer.stop();
+    }//GEN-LAST:event_mnuFollowFileActionPerformed
+
+    private void mnuTailRetentionActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuTailRetentionActionPerformed
+    {//GEN-HEADEREND:event_mnuTailRetentionActionPerformed
+        String str = JOptionPane.showInputDialog(this.getFrame(),
+                "Number of most recent samples to keep while following a trace (0 = keep all):",
+                Integer.toString(tailRetention));
+        if (str == null)
+            return;
+
+        try
+        {
+            tailRetention = Math.max(0, Integer.parseInt(str.trim()));
+        } catch (NumberFormatException ex)
+        {
+            JOptionPane.showMessageDialog(this.getFrame(), "Not a number: " + str, "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }//GEN-LAST:event_mnuTailRetentionActionPerformed
+
+    IndexTextTask indexTask = null;
+
+    /**
+     * Indexes the debug text of a newly loaded trace in the background (see
+     * TextIndex), so searching it is quick.
+     */
+    class IndexTextTask extends org.jdesktop.application.Task<Void, Void>
+    {
+        TraceDetails indexing;
+        SampleStore samples;
+
+        IndexTextTask(TraceDetails indexing, SampleStore samples)
+        {
+            super(TraceViewerView.this.getApplication());
+            this.indexing = indexing;
+            this.samples = samples;
+            setUserCanCancel(true);
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception
+        {
+            setMessage("Indexing debug output...");
+            indexing.getTextIndex().update(samples, this);
+            return null;
+        }
+
+        @Override
+        protected void finished()
+        {
+            if (indexTask == this)
+                indexTask = null;
+        }
+    }
+
+    String findQuery = "";
+
+    // the samples the last search found (in time order), in the samples it searched
+    int[] matches = null;
+    SampleStore matchSamples = null;
+
+    private void mnuFindActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuFindActionPerformed
+    {//GEN-HEADEREND:event_mnuFindActionPerformed
+        if (trace == null)
+            return;
+
+        String str = JOptionPane.showInputDialog(this.getFrame(),
+                mnuFindRegex.isSelected() ? "Find regular expression in debug output:" : "Find in debug output:",
+                findQuery);
+        if (str == null || str.length() == 0)
+            return;
+        findQuery = str;
+
+        Pattern pattern = null;
+        if (mnuFindRegex.isSelected())
+        {
+            try
+            {
+                pattern = Pattern.compile(str);
+            } catch (PatternSyntaxException ex)
+            {
+                JOptionPane.showMessageDialog(this.getFrame(), "Not a regular expression: " + ex.getDescription(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+
+        getApplication().getContext().getTaskService().execute(new FindTask(str, pattern));
+    }//GEN-LAST:event_mnuFindActionPerformed
+
+    private void mnuFindNextActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuFindNextActionPerformed
+    {//GEN-HEADEREND:event_mnuFindNextActionPerformed
+        if (matches == null)
+            mnuFindActionPerformed(evt);
+        else
+            showMatch(true);
+    }//GEN-LAST:event_mnuFindNextActionPerformed
+
+    private void mnuFindPreviousActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuFindPreviousActionPerformed
+    {//GEN-HEADEREND:event_mnuFindPreviousActionPerformed
+        if (matches == null)
+            mnuFindActionPerformed(evt);
+        else
+            showMatch(false);
+    }//GEN-LAST:event_mnuFindPreviousActionPerformed
+
+    /**
+     * Searches the debug text in the background. A plain search is looked up
+     * in the trace's TextIndex; a regular expression has to read all the text.
+     */
+    class FindTask extends org.jdesktop.application.Task<int[], Void>
+    {
+        TraceDetails searching;
+        SampleStore samples;
+        String query;
+        Pattern pattern;
+
+        FindTask(String query, Pattern pattern)
+        {
+            super(TraceViewerView.this.getApplication());
+            searching = trace;
+            samples = trace.samples.snapshot();
+            this.query = query;
+            this.pattern = pattern;
+            setUserCanCancel(true);
+        }
+
+        @Override
+        protected int[] doInBackground() throws Exception
+        {
+            setMessage("Searching for \"" + query + "\"...");
+
+            // take in anything appended since the trace was indexed (this waits for the indexing to finish)
+            TextIndex index = searching.getTextIndex();
+            index.update(samples, this);
+            return pattern != null ? index.find(pattern) : index.find(query);
+        }
+
+        @Override
+        protected void succeeded(int[] found)
+        {
+            if (trace != searching)
+                return;
+
+            matches = found;
+            matchSamples = samples;
+            if (found.length == 0)
+            {
+                statusMessageLabel.setText("\"" + query + "\" not found");
+                messageTimer.restart();
+                return;
+            }
+            showMatch(true);
+        }
+
+        @Override
+        protected void failed(Throwable cause)
+        {
+            Logger.getLogger(TraceViewerView.class.getName()).log(Level.SEVERE, null, cause);
+            JOptionPane.showMessageDialog(getFrame(), "Failed to search for \"" + query + "\":\n" + cause, "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Moves the cursor to the next match after it (or the previous one before
+     * it), selects its row and scrolls it into view if it isn't already.
+     */
+    private void showMatch(boolean next)
+    {
+        // the matches are in time order, so the one we want is a binary search away
+        int lo = 0;
+        int hi = matches.length;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            long t = matchSamples.getTimestamp(matches[mid]);
+            if (next ? t <= selstart : t < selstart)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int m = next ? lo : lo - 1;
+        if (m < 0 || m >= matches.length)
+        {
+            statusMessageLabel.setText("No more matches for \"" + findQuery + "\"");
+            messageTimer.restart();
+            return;
+        }
+
+        long t = matchSamples.getTimestamp(matches[m]);
+        selstart = t;
+        selend = t;
+        int row = trace.adj(matchSamples.getFuncId(matches[m]));
+        if (row >= 0)
+        {
+            trace.selrow = row;
+            showRow(row);
+        }
+
+        long span = vp.span(trace.traceareawidth);
+        if (t < vp.t_pos || t >= vp.t_pos + span)
+            moveToTime(Math.max(0, t - span / 2));
+        else
+            selectionChanged();
+        drawTrace();
+
+        statusMessageLabel.setText("Match " + (m + 1) + " of " + matches.length);
+        messageTimer.restart();
+    }
 
     private void mnuShowDetailsActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuShowDetailsActionPerformed
     {//GEN-HEADEREND:event_mnuShowDetailsActionPerformed
@@ -860,27 +1655,58 @@ public class TraceViewerView extends FrameView {
         }
     }//GEN-LAST:event_mnuShowDetailsActionPerformed
 
-    private void lblGraphicMouseMoved(java.awt.event.MouseEvent evt)//GEN-FIRST:event_lblGraphicMouseMoved
-    {//GEN-HEADEREND:event_lblGraphicMouseMoved
-        // test if mouse has hovered over any samples
-        // if so, display some sample information (eg, debug-out string)
+    private void mnuShowRunningActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_mnuShowRunningActionPerformed
+    {//GEN-HEADEREND:event_mnuShowRunningActionPerformed
+        showRunningPanel();
+    }//GEN-LAST:event_mnuShowRunningActionPerformed
+
+    private void showRunningPanel()
+    {
+        runningScroll.setVisible(mnuShowRunning.isSelected());
+        mainPanel.revalidate();
+        updateRunning();
+    }
+
+    /**
+     * Lists what was running at the cursor (or over the selection) in the
+     * side panel. It's kept up to date as the cursor moves, so it only does a
+     * binary search per function (see TraceDetails.findRunning()).
+     */
+    private void updateRunning()
+    {
+        if (!runningScroll.isVisible())
+            return;
+
+        if (trace == null)
+            runningList.setListData(new String[0]);
+        else
+        {
+            List<String> lines = trace.findRunning(selstart, selend);
+            runningList.setListData(lines.toArray(new String[lines.size()]));
+        }
+    }
+
+    private void timelineMouseMoved(java.awt.event.MouseEvent evt)//GEN-FIRST:event_timelineMouseMoved
+    {//GEN-HEADEREND:event_timelineMouseMoved
+        // test if mouse has hovered over any samples or calls
+        // if so, display some information about them (eg, debug-out string, call duration)
 
-        if (trace != null && mnuShowDetails.isSelected())
+        if (trace != null)
         {
             Point pt = evt.getPoint();
-            String strhover = trace.findHoverText(zoom, t_pos, pt);
-            lblGraphic.setToolTipText(strhover);
+            String strhover = trace.findHoverText(vp, pt, mnuShowDetails.isSelected());
+            timeline.setToolTipText(strhover);
         }
-    }//GEN-LAST:event_lblGraphicMouseMoved
+    }//GEN-LAST:event_timelineMouseMoved
 
-    private void lblGraphicMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_lblGraphicMouseClicked
+    private void timelineMouseClicked(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_timelineMouseClicked
         if (trace != null)
         {
             Point pt = evt.getPoint();
-            trace.handleMouseClick(pt);
+            trace.handleMouseClick(vp, pt);
             drawTrace();
         }
-    }//GEN-LAST:event_lblGraphicMouseClicked
+    }//GEN-LAST:event_timelineMouseClicked
 
     String strBrowser = null;
     
@@ -909,25 +1735,20 @@ public class TraceViewerView extends FrameView {
         showUrlInBrowser("http://dstar00367lx.australia.shufflemaster.com/bugs/enter_bug.cgi?product=Sydlinux1%20Gitorious/Tools/trace-viewer");
     }//GEN-LAST:event_mnuReportBugActionPerformed
 
-    private void mainPanelComponentResized(java.awt.event.ComponentEvent evt)//GEN-FIRST:event_mainPanelComponentResized
-    {//GEN-HEADEREND:event_mainPanelComponentResized
-        lblGraphic.setIcon(null);
-    }//GEN-LAST:event_mainPanelComponentResized
-
 private void mnuResetZoomActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuResetZoomActionPerformed
         if (trace == null)
             return;
 
         // figure out new t_pos to keep everything centred
-        t_pos = (selstart+selend) / 2;
+        vp.t_pos = (selstart+selend) / 2;
 
-        zoom = 128;
+        vp.zoom = 128;
 
         // now move it back to centre after the zoom is applied
-        t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
+        vp.t_pos = screenToTimelineCoord(trace.leftcolwidth - trace.traceareawidth / 2);
 
-        if (t_pos < 0)
-            t_pos = 0;
+        if (vp.t_pos < 0)
+            vp.t_pos = 0;
 
         disableRefreshFlag = true;
         setScrollBars();
@@ -943,26 +1764,42 @@ private void mnuResetZoomActionPerformed(java.awt.event.ActionEvent evt) {//GEN-
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JLabel frameTimeLabel;
     private javax.swing.JPopupMenu.Separator jSeparator1;
+    private javax.swing.JPopupMenu.Separator jSeparator2;
+    private javax.swing.JPopupMenu.Separator jSeparator3;
     private javax.swing.JFileChooser jTraceChooser;
-    private javax.swing.JLabel lblGraphic;
     private javax.swing.JPanel mainPanel;
     private javax.swing.JMenuBar menuBar;
+    private javax.swing.JCheckBoxMenuItem mnuAutoScroll;
     private javax.swing.JMenuItem mnuContents;
+    private javax.swing.JMenuItem mnuFind;
+    private javax.swing.JMenuItem mnuFindNext;
+    private javax.swing.JMenuItem mnuFindPrevious;
+    private javax.swing.JCheckBoxMenuItem mnuFindRegex;
+    private javax.swing.JCheckBoxMenuItem mnuFollowFile;
     private javax.swing.JMenuItem mnuOpenTrace;
     private javax.swing.JMenuItem mnuReportBug;
     private javax.swing.JMenuItem mnuResetZoom;
     private javax.swing.JCheckBoxMenuItem mnuShowDetails;
+    private javax.swing.JCheckBoxMenuItem mnuShowRunning;
+    private javax.swing.JMenuItem mnuSaveCompressed;
+    private javax.swing.JMenuItem mnuStopLoading;
+    private javax.swing.JMenuItem mnuTailRetention;
     private javax.swing.JMenuItem mnuUpdateHistory;
     private javax.swing.JMenuItem mnuZoomIn;
     private javax.swing.JMenuItem mnuZoomOut;
     private javax.swing.JMenu optionsMenu;
     private javax.swing.JProgressBar progressBar;
+    private javax.swing.JList runningList;
+    private javax.swing.JScrollPane runningScroll;
     private javax.swing.JScrollBar scrlHorz;
     private javax.swing.JScrollBar scrlVert;
+    private javax.swing.JMenu searchMenu;
     private javax.swing.JLabel statusAnimationLabel;
     private javax.swing.JLabel statusMessageLabel;
     private javax.swing.JPanel statusPanel;
+    private traceviewer.TimelineCanvas timeline;
     // End of variables declaration//GEN-END:variables
 
     private final Timer messageTimer;
@@ -0,0 +1,98 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+/**
+ * The visible part of the timeline: where it starts, how zoomed in it is, and
+ * which function row is scrolled to the top.
+ *
+ * Timestamps are 64-bit microseconds, which overflow an int after about 35
+ * minutes, so all conversions to and from screen coordinates are done in
+ * long/double here. The horizontal JScrollBar only has an int range, so for
+ * long captures each scrollbar step covers 'scrollunit' microseconds.
+ *
+ * @author sgp1000
+ */
+class Viewport
+{
+    // largest scrollbar value we will use (leaves headroom for the block increment)
+    static final int SCROLL_LIMIT = Integer.MAX_VALUE / 4;
+
+    // keeps far off-screen coordinates from wrapping around when drawn
+    static final int MAX_COORD = 1 << 24;
+
+    static final long MAX_ZOOM = 1L << 40;
+
+    long zoom = 128;        // 100 x microseconds per pixel
+    long t_pos = 0;         // timestamp at the left edge of the trace area
+    long scrollunit = 1;    // microseconds per scrollbar step
+    int top_row = 0;        // row shown at the top of the trace area
+
+    // pixels per microsecond
+    public double scale()
+    {
+        return 100. / (double)zoom;
+    }
+
+    /**
+     * The pixel column (counting from timestamp 0) that 'val' falls in. Screen
+     * coordinates are taken from this, rather than from the distance to t_pos,
+     * so that a time always lands on the same column however far the view is
+     * scrolled (see TileCache).
+     */
+    public long pixelOf(long val)
+    {
+        return (long)Math.floor(val * scale());
+    }
+
+    // the first timestamp in pixel column 'px'
+    public long timeOfPixel(long px)
+    {
+        return (long)Math.ceil(px / scale());
+    }
+
+    // the pixel column at the left edge of the trace area
+    public long originPixel()
+    {
+        return pixelOf(t_pos);
+    }
+
+    public int toScreen(long val, int x0)
+    {
+        long x = pixelOf(val) - originPixel() + x0;
+        if (x > MAX_COORD)
+            return MAX_COORD;
+        if (x < -MAX_COORD)
+            return -MAX_COORD;
+        return (int)x;
+    }
+
+    public long toTimeline(long x, int x0)
+    {
+        return timeOfPixel(x - x0 + originPixel());
+    }
+
+    // microseconds covered by 'width' pixels
+    public long span(int width)
+    {
+        return (long)(width / scale());
+    }
+
+    public void setScrollRange(long max)
+    {
+        scrollunit = max / SCROLL_LIMIT + 1;
+    }
+
+    public int toScroll(long t)
+    {
+        return (int)(t / scrollunit);
+    }
+
+    public long fromScroll(int value)
+    {
+        return value * scrollunit;
+    }
+}
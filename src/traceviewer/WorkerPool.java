@@ -0,0 +1,59 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package traceviewer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The thread pool shared by everything that splits work across cores (one
+ * thread per core). Its threads are daemons, so they never hold up exit.
+ *
+ * Tiles (see TileCache) are drawn on a pool of their own, so what has just
+ * come into view doesn't have to wait behind a trace being loaded.
+ *
+ * @author sgp1000
+ */
+class WorkerPool
+{
+    private static ExecutorService pool = null;
+    private static ExecutorService tilePool = null;
+
+    public static int threads()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public static synchronized ExecutorService get()
+    {
+        if (pool == null)
+            pool = newPool("TraceViewer worker ");
+        return pool;
+    }
+
+    public static synchronized ExecutorService tiles()
+    {
+        if (tilePool == null)
+            tilePool = newPool("TraceViewer tiles ");
+        return tilePool;
+    }
+
+    private static ExecutorService newPool(final String name)
+    {
+        return Executors.newFixedThreadPool(threads(), new ThreadFactory()
+        {
+            int num = 0;
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + (num++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}